@@ -0,0 +1,208 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+
+package com.janrain.android.benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Generates the synthetic Capture records, flows and Engage configurations the JMH benchmarks run over. The
+ * fixtures are deterministic for a given size, so results are comparable across runs.
+ */
+public class JsonFixtures {
+    private JsonFixtures() {}
+
+    /**
+     * A Capture record with size photos and size / 10 (at least one) profiles, each profile having a few
+     * followers, as well as the usual scalar attributes and a nested address object.
+     * @param size the number of photos
+     * @return a new record
+     */
+    public static JSONObject record(int size) {
+        try {
+            JSONObject record = new JSONObject();
+            record.put("id", 1000);
+            record.put("uuid", "6a4e7b1c-0f3d-4a8e-9c2b-" + String.format("%012d", size));
+            record.put("email", "benchmark@example.com");
+            record.put("displayName", "Benchmark User");
+            record.put("givenName", "Benchmark");
+            record.put("familyName", "User");
+            record.put("birthday", JSONObject.NULL);
+            record.put("emailVerified", "2016-01-01 00:00:00.000000 +0000");
+            record.put("optIn", new JSONObject().put("status", true));
+
+            JSONObject address = new JSONObject();
+            address.put("address1", "1 Main Street");
+            address.put("city", "Portland");
+            address.put("zip", "97204");
+            address.put("country", "US");
+            record.put("primaryAddress", address);
+
+            JSONArray photos = new JSONArray();
+            for (int i = 0; i < size; i++) {
+                JSONObject photo = new JSONObject();
+                photo.put("id", 10000 + i);
+                photo.put("type", i % 2 == 0 ? "normal" : "square");
+                photo.put("value", "https://photos.example.com/" + i + ".jpg");
+                photos.put(photo);
+            }
+            record.put("photos", photos);
+
+            JSONArray profiles = new JSONArray();
+            for (int i = 0; i < Math.max(size / 10, 1); i++) {
+                JSONObject profile = new JSONObject();
+                profile.put("id", 20000 + i);
+                profile.put("domain", "provider" + (i % 5) + ".example.com");
+                profile.put("identifier", "https://provider" + (i % 5) + ".example.com/users/" + i);
+                profile.put("accessCredentials", new JSONObject().put("accessToken", "token-" + i));
+                JSONArray followers = new JSONArray();
+                for (int j = 0; j < 3; j++) {
+                    followers.put(new JSONObject().put("id", 30000 + i * 3 + j).put("identifier", "f" + j));
+                }
+                profile.put("followers", followers);
+                profiles.put(profile);
+            }
+            record.put("profiles", profiles);
+            return record;
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A copy of record as a user might have edited it: one scalar and one nested attribute changed, every
+     * tenth photo changed, the last photo removed and a new photo added.
+     * @param record a record from record(int)
+     * @return a new, edited copy of record
+     */
+    public static JSONObject editedRecord(JSONObject record) {
+        try {
+            JSONObject edited = new JSONObject(record.toString());
+            edited.put("displayName", "Edited User");
+            edited.getJSONObject("primaryAddress").put("city", "Seattle");
+
+            JSONArray photos = edited.getJSONArray("photos");
+            JSONArray editedPhotos = new JSONArray();
+            for (int i = 0; i < photos.length() - 1; i++) {
+                JSONObject photo = photos.getJSONObject(i);
+                if (i % 10 == 0) photo.put("value", "https://photos.example.com/edited/" + i + ".jpg");
+                editedPhotos.put(photo);
+            }
+            editedPhotos.put(new JSONObject()
+                    .put("type", "normal")
+                    .put("value", "https://photos.example.com/new.jpg"));
+            edited.put("photos", editedPhotos);
+            return edited;
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A Capture flow with size fields, shared between a registration and an edit profile form.
+     * @param size the number of fields
+     * @return the flow, as JSON text
+     */
+    public static String flow(int size) {
+        try {
+            JSONObject fields = new JSONObject();
+            JSONArray registrationFields = new JSONArray();
+            for (int i = 0; i < size; i++) {
+                String name = "field" + i;
+                JSONObject field = new JSONObject();
+                field.put("type", i % 3 == 0 ? "select" : "text");
+                field.put("label", "Field " + i);
+                field.put("schemaId", "custom.attribute" + i);
+                field.put("validation", new JSONArray()
+                        .put(new JSONObject().put("rule", "required").put("value", i % 2 == 0))
+                        .put(new JSONObject().put("rule", "maxLength").put("value", 256)));
+                if (i % 3 == 0) {
+                    JSONArray options = new JSONArray();
+                    for (int j = 0; j < 5; j++) {
+                        options.put(new JSONObject().put("label", "Option " + j).put("value", "o" + j));
+                    }
+                    field.put("options", options);
+                }
+                fields.put(name, field);
+                registrationFields.put(name);
+            }
+
+            JSONObject forms = new JSONObject();
+            forms.put("registrationForm", new JSONObject().put("fields", registrationFields));
+            forms.put("editProfileForm", new JSONObject().put("fields", registrationFields));
+
+            return new JSONObject()
+                    .put("version", "benchmark-" + size)
+                    .put("fields", fields)
+                    .put("forms", forms)
+                    .toString();
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * An Engage mobile configuration with size providers.
+     * @param size the number of providers
+     * @return the configuration, as JSON text
+     */
+    public static String engageConfig(int size) {
+        try {
+            JSONObject providerInfo = new JSONObject();
+            JSONArray enabledProviders = new JSONArray();
+            for (int i = 0; i < size; i++) {
+                String name = "provider" + i;
+                JSONObject provider = new JSONObject();
+                provider.put("friendly_name", "Provider " + i);
+                provider.put("url", "/" + name + "/start?");
+                provider.put("requires_input", i % 4 == 0 ? "YES" : "NO");
+                provider.put("social_sharing", i % 2 == 0 ? "YES" : "NO");
+                provider.put("cookie_domains", new JSONArray().put(name + ".example.com"));
+                provider.put("input_prompt", "");
+                providerInfo.put(name, provider);
+                enabledProviders.put(name);
+            }
+
+            return new JSONObject()
+                    .put("provider_info", providerInfo)
+                    .put("enabled_providers", enabledProviders)
+                    .put("hide_tagline", "NO")
+                    .put("updated_at", 1480000000)
+                    .toString();
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
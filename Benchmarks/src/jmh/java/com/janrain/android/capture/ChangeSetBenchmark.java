@@ -0,0 +1,117 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+
+package com.janrain.android.capture;
+
+import com.janrain.android.benchmark.JsonFixtures;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+
+import static com.janrain.android.capture.Capture.InvalidApidChangeException;
+
+/**
+ * Benchmarks compiling the change set of an edited Capture record, and collapsing it as
+ * CaptureRecord.synchronize does before sending it. Lives in the capture package for the package-private
+ * ApidChange types.
+ *
+ * compileChangeSet and compileChangeSetUnchanged include converting both records to JsonNodes, which is
+ * linear in the record's size. compileChangeSetUnchangedNodes measures just the diff of already converted
+ * records, and sharingRecordChangeSet the change set of a structurally sharing record after a single edit,
+ * as its synchronize computes it.
+ */
+@State(Scope.Benchmark)
+public class ChangeSetBenchmark {
+    @Param({"10", "100", "1000", "5000"})
+    public int size;
+
+    private JSONObject original;
+    private JSONObject unchanged;
+    private JSONObject edited;
+    private JsonNode originalNode;
+    private JsonNode unchangedNode;
+    private CaptureRecord sharingRecord;
+    private Set<ApidChange> changeSet;
+    private Method collapseApidChanges;
+
+    @Setup
+    public void setUp() throws Exception {
+        original = JsonFixtures.record(size);
+        unchanged = new JSONObject(original.toString());
+        edited = JsonFixtures.editedRecord(original);
+        changeSet = CaptureJsonUtils.compileChangeSet(original, edited);
+        originalNode = JsonNode.of(original);
+        unchangedNode = JsonNode.of(unchanged);
+
+        CaptureRecord.setStructuralSharing(true);
+        sharingRecord = new CaptureRecord(original, "benchmark-token");
+        CaptureRecord.setStructuralSharing(false);
+        sharingRecord.setAttribute("/photos#10000/value", "https://photos.example.com/edited/0.jpg");
+        // the first change set builds the original's nodes, later ones reuse them
+        sharingRecord.getApidChangeSet();
+
+        collapseApidChanges = CaptureRecord.class.getDeclaredMethod("collapseApidChanges", Set.class);
+        collapseApidChanges.setAccessible(true);
+    }
+
+    @Benchmark
+    public Set<ApidChange> compileChangeSet() throws InvalidApidChangeException {
+        return CaptureJsonUtils.compileChangeSet(original, edited);
+    }
+
+    @Benchmark
+    public Set<ApidChange> compileChangeSetUnchanged() throws InvalidApidChangeException {
+        return CaptureJsonUtils.compileChangeSet(original, unchanged);
+    }
+
+    @Benchmark
+    public Set<ApidChange> compileChangeSetUnchangedNodes() throws InvalidApidChangeException {
+        return CaptureJsonUtils.compileChangeSet(originalNode, unchangedNode);
+    }
+
+    @Benchmark
+    public Set<ApidChange> sharingRecordChangeSet() throws InvalidApidChangeException {
+        return sharingRecord.getApidChangeSet();
+    }
+
+    @Benchmark
+    public Object collapseApidChanges() throws Exception {
+        return collapseApidChanges.invoke(null, changeSet);
+    }
+}
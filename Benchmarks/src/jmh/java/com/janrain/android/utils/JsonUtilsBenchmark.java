@@ -0,0 +1,84 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+
+package com.janrain.android.utils;
+
+import com.janrain.android.benchmark.JsonFixtures;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the JsonUtils operations the change set and record code is built on, over Capture records.
+ */
+@State(Scope.Benchmark)
+public class JsonUtilsBenchmark {
+    @Param({"10", "100", "1000", "5000"})
+    public int size;
+
+    private JSONObject record;
+    private JSONObject equalRecord;
+    private JSONObject editedRecord;
+
+    @Setup
+    public void setUp() throws Exception {
+        record = JsonFixtures.record(size);
+        equalRecord = new JSONObject(record.toString());
+        editedRecord = JsonFixtures.editedRecord(record);
+    }
+
+    @Benchmark
+    public int compareJsonValsEqual() {
+        return JsonUtils.compareJsonVals(record, equalRecord);
+    }
+
+    @Benchmark
+    public int compareJsonValsEdited() {
+        return JsonUtils.compareJsonVals(record, editedRecord);
+    }
+
+    @Benchmark
+    public JSONObject deepCopy() {
+        JSONObject copy = new JSONObject();
+        JsonUtils.deepCopy(record, copy);
+        return copy;
+    }
+
+    @Benchmark
+    public JSONObject collapseJsonObjects() {
+        return JsonUtils.collapseJsonObjects(record, editedRecord);
+    }
+}
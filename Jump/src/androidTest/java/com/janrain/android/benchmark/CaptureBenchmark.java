@@ -0,0 +1,270 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.benchmark;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.Looper;
+import com.janrain.android.capture.Capture;
+import com.janrain.android.capture.CaptureApiError;
+import com.janrain.android.capture.CaptureRecord;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the end-to-end latency and allocations of Capture operations, through the real Capture,
+ * CaptureRecord and Jump code paths, against a CaptureStandIn. Everything except the network is real: request
+ * building, the connection manager and its retry, circuit breaker and metrics layers, response parsing and
+ * result handling.
+ *
+ * Jump must have been initialized with the stand-in installed, and configured with its form names, so that
+ * the flow is the stand-in's. The benchmark must be run on a thread without a Looper, e.g. from an
+ * instrumentation or a worker thread, where the library performs each operation synchronously.
+ */
+public class CaptureBenchmark {
+    /*package*/ static final String PASSWORD = "benchmark-password";
+
+    private final CaptureStandIn mStandIn;
+    private final String mRunId = Long.toString(System.currentTimeMillis(), 36);
+
+    /**
+     * A single operation under measurement, which throws if the operation fails
+     */
+    private interface Operation {
+        void run(int iteration) throws Exception;
+    }
+
+    /**
+     * The measurements of one operation
+     */
+    public static class Result {
+        public final String operation;
+        public final int iterations;
+        public final double p50Millis;
+        public final double p95Millis;
+        public final double p99Millis;
+
+        /**
+         * The mean number of bytes allocated per operation by the whole process, or -1 where the runtime
+         * doesn't report allocations (before Android 6.0)
+         */
+        public final long bytesAllocatedPerOperation;
+
+        private Result(String operation, long[] sortedNanos, long bytesAllocated) {
+            this.operation = operation;
+            iterations = sortedNanos.length;
+            p50Millis = percentile(sortedNanos, 0.50) / 1e6;
+            p95Millis = percentile(sortedNanos, 0.95) / 1e6;
+            p99Millis = percentile(sortedNanos, 0.99) / 1e6;
+            bytesAllocatedPerOperation = bytesAllocated < 0 || iterations == 0 ? bytesAllocated
+                    : bytesAllocated / iterations;
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        public String toString() {
+            return String.format(Locale.US, "%-24s n=%d p50=%.2fms p95=%.2fms p99=%.2fms bytes/op=%d",
+                    operation, iterations, p50Millis, p95Millis, p99Millis, bytesAllocatedPerOperation);
+        }
+    }
+
+    public CaptureBenchmark(CaptureStandIn standIn) {
+        mStandIn = standIn;
+    }
+
+    /**
+     * Runs every operation, each warmupIterations times unmeasured and then iterations times measured
+     *
+     * @return the measurements, one per operation
+     */
+    public List<Result> run(int warmupIterations, int iterations) throws Exception {
+        if (Looper.myLooper() != null) {
+            throw new IllegalStateException("CaptureBenchmark must be run on a thread without a Looper");
+        }
+
+        final String email = "benchmark-" + mRunId + "@standin";
+        mStandIn.addUser(email, PASSWORD, "Benchmark User");
+        final CaptureRecord[] record = {signInTraditional(email)};
+
+        List<Result> results = new ArrayList<Result>();
+        results.add(measure("traditional sign-in", warmupIterations, iterations, new Operation() {
+            public void run(int iteration) throws Exception {
+                record[0] = signInTraditional(email);
+            }
+        }));
+        results.add(measure("social sign-in", warmupIterations, iterations, new Operation() {
+            public void run(int iteration) throws Exception {
+                signInSocial("token-" + mRunId + "-" + iteration);
+            }
+        }));
+        results.add(measure("registration", warmupIterations, iterations, new Operation() {
+            public void run(int iteration) throws Exception {
+                register("registered-" + mRunId + "-" + iteration + "@standin");
+            }
+        }));
+        results.add(measure("refresh access token", warmupIterations, iterations, new Operation() {
+            public void run(int iteration) throws Exception {
+                Outcome outcome = new Outcome();
+                record[0].refreshAccessToken(outcome);
+                outcome.check();
+            }
+        }));
+        results.add(measure("synchronize", warmupIterations, iterations, new Operation() {
+            public void run(int iteration) throws Exception {
+                record[0].put("aboutMe", "iteration " + iteration);
+                Outcome outcome = new Outcome();
+                record[0].synchronize(outcome);
+                outcome.check();
+            }
+        }));
+        results.add(measure("update profile", warmupIterations, iterations, new Operation() {
+            public void run(int iteration) throws Exception {
+                record[0].put("displayName", "Benchmark User " + iteration);
+                Outcome outcome = new Outcome();
+                Capture.updateUserProfile(record[0], outcome);
+                outcome.check();
+            }
+        }));
+        return results;
+    }
+
+    private static Result measure(String name, int warmupIterations, int iterations, Operation operation)
+            throws Exception {
+        for (int i = 0; i < warmupIterations; i++) operation.run(-1 - i);
+
+        long[] nanos = new long[iterations];
+        long allocatedBefore = bytesAllocated();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            operation.run(i);
+            nanos[i] = System.nanoTime() - start;
+        }
+        long allocatedAfter = bytesAllocated();
+
+        Arrays.sort(nanos);
+        return new Result(name, nanos,
+                allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore);
+    }
+
+    /**
+     * @return the bytes the process has allocated so far, or -1 if the runtime doesn't say
+     */
+    private static long bytesAllocated() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return -1;
+        String stat = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        try {
+            return stat == null ? -1 : Long.parseLong(stat);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /*package*/ static CaptureRecord signInTraditional(String email) throws Exception {
+        SignInOutcome outcome = new SignInOutcome();
+        Capture.performTraditionalSignIn(email, PASSWORD, outcome, null);
+        return outcome.check();
+    }
+
+    private static CaptureRecord signInSocial(String authInfoToken) throws Exception {
+        SignInOutcome outcome = new SignInOutcome();
+        Capture.performSocialSignIn(authInfoToken, outcome, "facebook", null);
+        return outcome.check();
+    }
+
+    private static CaptureRecord register(String email) throws Exception {
+        JSONObject newUser = new JSONObject();
+        try {
+            newUser.put("email", email).put("password", PASSWORD).put("displayName", "Registered User");
+        } catch (JSONException e) {
+            throw new RuntimeException("Unexpected", e);
+        }
+        SignInOutcome outcome = new SignInOutcome();
+        Capture.performRegistration(newUser, null, outcome);
+        return outcome.check();
+    }
+
+    /**
+     * Records the result of an operation, which completes synchronously on a thread without a Looper
+     */
+    /*package*/ static class Outcome implements Capture.CaptureApiRequestCallback {
+        private boolean mDone;
+        private CaptureApiError mError;
+
+        public void onSuccess() {
+            mDone = true;
+        }
+
+        public void onFailure(CaptureApiError e) {
+            mDone = true;
+            mError = e;
+        }
+
+        void check() throws Capture.CaptureApiException {
+            if (!mDone) throw new IllegalStateException("operation didn't complete synchronously");
+            if (mError != null) throw new Capture.CaptureApiException(mError);
+        }
+    }
+
+    private static class SignInOutcome extends Capture.SignInResultHandler {
+        private boolean mDone;
+        private CaptureRecord mRecord;
+        private CaptureApiError mError;
+
+        @Override
+        public void onSuccess(CaptureRecord record, JSONObject response) {
+            mDone = true;
+            mRecord = record;
+        }
+
+        @Override
+        public void onFailure(CaptureApiError error) {
+            mDone = true;
+            mError = error;
+        }
+
+        CaptureRecord check() throws Capture.CaptureApiException {
+            if (!mDone) throw new IllegalStateException("operation didn't complete synchronously");
+            if (mError != null) throw new Capture.CaptureApiException(mError);
+            return mRecord;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.benchmark;
+
+import com.janrain.android.engage.net.InMemoryTransport;
+import com.janrain.android.engage.net.JRConnectionManager;
+import com.janrain.android.engage.net.Transport;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.GzipSource;
+import okio.Okio;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A local stand-in for the Capture and Engage services, serving the endpoints the library calls from an
+ * in-memory user store through an InMemoryTransport. Used by CaptureBenchmark to exercise the real Capture,
+ * CaptureRecord and Jump code paths without a network.
+ *
+ * The library must be configured with the stand-in's form names, see FLOW, and any Capture domain, Capture
+ * client ID and flow settings; the transport answers every host.
+ */
+public class CaptureStandIn {
+    public static final String SIGN_IN_FORM = "signInForm";
+    public static final String REGISTRATION_FORM = "registrationForm";
+    public static final String SOCIAL_REGISTRATION_FORM = "socialRegistrationForm";
+    public static final String EDIT_PROFILE_FORM = "editProfileForm";
+    public static final String FLOW_VERSION = "standin";
+
+    /**
+     * The flow served for every flow request, with a sign-in form and registration and edit profile forms
+     */
+    public static final String FLOW = "{\"version\":\"" + FLOW_VERSION + "\",\"fields\":{"
+            + "\"" + SIGN_IN_FORM + "\":{\"fields\":[\"signInEmailAddress\",\"currentPassword\"]},"
+            + "\"" + REGISTRATION_FORM + "\":{\"fields\":[\"emailAddress\",\"newPassword\",\"displayName\"]},"
+            + "\"" + SOCIAL_REGISTRATION_FORM + "\":{\"fields\":[\"emailAddress\",\"displayName\"]},"
+            + "\"" + EDIT_PROFILE_FORM + "\":{\"fields\":[\"displayName\",\"aboutMe\"]},"
+            + "\"signInEmailAddress\":{\"type\":\"email\",\"schemaId\":\"email\"},"
+            + "\"currentPassword\":{\"type\":\"password\",\"schemaId\":\"password\"},"
+            + "\"emailAddress\":{\"type\":\"email\",\"schemaId\":\"email\"},"
+            + "\"newPassword\":{\"type\":\"password\",\"schemaId\":\"password\"},"
+            + "\"displayName\":{\"type\":\"text\",\"schemaId\":\"displayName\"},"
+            + "\"aboutMe\":{\"type\":\"text\",\"schemaId\":\"aboutMe\"}"
+            + "}}";
+
+    private static final String ENGAGE_CONFIG = "{\"baseurl\":\"https://standin.rpxnow.com\","
+            + "\"provider_info\":{},\"enabled_providers\":[],\"social_providers\":[],\"hide_tagline\":false}";
+
+    private final InMemoryTransport mTransport = new InMemoryTransport();
+    // guarded by this
+    private final Map<String, JSONObject> mUsersByEmail = new HashMap<String, JSONObject>();
+    private final Map<String, String> mPasswords = new HashMap<String, String>();
+    private final Map<String, JSONObject> mUsersByToken = new HashMap<String, JSONObject>();
+    private int mNextId = 1;
+
+    public CaptureStandIn() {
+        mTransport.route("GET", "/openid/mobile_config_and_baseurl", 200, ENGAGE_CONFIG);
+        mTransport.route("GET", "/widget_data/flows/*", 200, FLOW);
+        mTransport.route("POST", "/oauth/auth_native_traditional", new Endpoint() {
+            Transport.Response respond(Map<String, String> params) throws JSONException {
+                return signInTraditional(params);
+            }
+        });
+        mTransport.route("POST", "/oauth/auth_native", new Endpoint() {
+            Transport.Response respond(Map<String, String> params) throws JSONException {
+                return signInSocial(params);
+            }
+        });
+        mTransport.route("POST", "/oauth/register_native*", new Endpoint() {
+            Transport.Response respond(Map<String, String> params) throws JSONException {
+                return register(params);
+            }
+        });
+        mTransport.route("POST", "/oauth/refresh_access_token", new Endpoint() {
+            Transport.Response respond(Map<String, String> params) throws JSONException {
+                return refreshAccessToken(params);
+            }
+        });
+        mTransport.route("POST", "/oauth/update_profile_native", new Endpoint() {
+            Transport.Response respond(Map<String, String> params) throws JSONException {
+                return updateProfile(params);
+            }
+        });
+        mTransport.route("POST", "/entity", new Endpoint() {
+            Transport.Response respond(Map<String, String> params) throws JSONException {
+                return entity(params);
+            }
+        });
+        mTransport.route("POST", "/entity.*", new Endpoint() {
+            Transport.Response respond(Map<String, String> params) throws JSONException {
+                return modifyEntity(params);
+            }
+        });
+    }
+
+    /**
+     * Routes the library's connections to this stand-in
+     */
+    public void install() {
+        JRConnectionManager.setTransport(mTransport);
+    }
+
+    /**
+     * Restores the library's default transport
+     */
+    public void uninstall() {
+        JRConnectionManager.setTransport(null);
+    }
+
+    /**
+     * @return the transport, for configuring its latency and bandwidth
+     */
+    public InMemoryTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Adds a user who can sign in with the traditional sign-in form
+     */
+    public synchronized void addUser(String email, String password, String displayName) {
+        JSONObject user = newUser(email);
+        try {
+            user.put("displayName", displayName);
+        } catch (JSONException e) {
+            throw new RuntimeException("Unexpected", e);
+        }
+        mPasswords.put(email, password);
+    }
+
+    private synchronized Transport.Response signInTraditional(Map<String, String> params)
+            throws JSONException {
+        String email = firstNonNull(params.get("signInEmailAddress"), params.get("user"));
+        String password = firstNonNull(params.get("currentPassword"), params.get("password"));
+        JSONObject user = mUsersByEmail.get(email);
+        if (user == null || password == null || !password.equals(mPasswords.get(email))) {
+            return error(210, "invalid_credentials", "Incorrect username or password.");
+        }
+        return signedIn(user);
+    }
+
+    private synchronized Transport.Response signInSocial(Map<String, String> params) throws JSONException {
+        String token = params.get("token");
+        if (token == null) return error(100, "missing_argument", "token");
+
+        // every auth_info token belongs to a user, who is created on first use
+        String email = token + "@social.standin";
+        JSONObject user = mUsersByEmail.get(email);
+        if (user == null) user = newUser(email);
+        return signedIn(user);
+    }
+
+    private synchronized Transport.Response register(Map<String, String> params) throws JSONException {
+        String email = params.get("emailAddress");
+        if (email == null) return error(390, "invalid_form_fields", "emailAddress is required");
+        if (mUsersByEmail.containsKey(email)) {
+            return error(380, "email_address_in_use", "The email address is already in use");
+        }
+
+        JSONObject user = newUser(email);
+        user.put("displayName", params.get("displayName"));
+        if (params.get("newPassword") != null) mPasswords.put(email, params.get("newPassword"));
+        return signedIn(user);
+    }
+
+    private synchronized Transport.Response refreshAccessToken(Map<String, String> params)
+            throws JSONException {
+        JSONObject user = mUsersByToken.remove(params.get("access_token"));
+        if (user == null) return error(414, "access_token_expired", "access token expired");
+        if (params.get("signature") == null) return error(100, "missing_argument", "signature");
+
+        String accessToken = newAccessToken(user);
+        return ok(new JSONObject().put("access_token", accessToken));
+    }
+
+    private synchronized Transport.Response updateProfile(Map<String, String> params) throws JSONException {
+        JSONObject user = mUsersByToken.get(params.get("access_token"));
+        if (user == null) return error(414, "access_token_expired", "access token expired");
+
+        for (String field : new String[]{"displayName", "aboutMe"}) {
+            if (params.containsKey(field)) user.put(field, params.get(field));
+        }
+        return ok(new JSONObject());
+    }
+
+    private synchronized Transport.Response entity(Map<String, String> params) throws JSONException {
+        JSONObject user = mUsersByToken.get(params.get("access_token"));
+        if (user == null) return error(414, "access_token_expired", "access token expired");
+        return ok(new JSONObject().put("result", new JSONObject(user.toString())));
+    }
+
+    private synchronized Transport.Response modifyEntity(Map<String, String> params) throws JSONException {
+        JSONObject user = mUsersByToken.get(params.get("access_token"));
+        if (user == null) return error(414, "access_token_expired", "access token expired");
+
+        String path = params.get("attribute_name");
+        String value = params.get("value");
+        Object target = path == null ? user : resolve(user, path);
+        if (target == null) return error(223, "attribute_does_not_exist", path);
+
+        // the stand-in applies updates and replaces alike, and a delete clears the attribute
+        if (value == null) {
+            if (path == null) return error(100, "missing_argument", "attribute_name");
+            removeAt(user, path);
+        } else if (target instanceof JSONObject && value.trim().startsWith("{")) {
+            JSONObject newValue = new JSONObject(value);
+            for (Iterator<String> keys = newValue.keys(); keys.hasNext(); ) {
+                String key = keys.next();
+                ((JSONObject) target).put(key, newValue.get(key));
+            }
+        } else {
+            return error(200, "invalid_argument", "value for " + path);
+        }
+        return ok(new JSONObject());
+    }
+
+    /**
+     * Resolves an attribute path like /primaryAddress or /photos#3/value to the object at that path
+     */
+    private static Object resolve(JSONObject user, String path) {
+        Object current = user;
+        for (String segment : path.split("/")) {
+            if (segment.length() == 0) continue;
+            if (!(current instanceof JSONObject)) return null;
+
+            String[] nameAndId = segment.split("#");
+            current = ((JSONObject) current).opt(nameAndId[0]);
+            if (nameAndId.length > 1) current = findPluralElement(current, nameAndId[1]);
+        }
+        return current;
+    }
+
+    private static Object findPluralElement(Object plural, String id) {
+        if (!(plural instanceof JSONArray)) return null;
+        JSONArray array = (JSONArray) plural;
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject element = array.optJSONObject(i);
+            if (element != null && id.equals(String.valueOf(element.opt("id")))) return element;
+        }
+        return null;
+    }
+
+    private static void removeAt(JSONObject user, String path) {
+        int lastSlash = path.lastIndexOf('/');
+        Object parent = lastSlash <= 0 ? user : resolve(user, path.substring(0, lastSlash));
+        if (parent instanceof JSONObject) ((JSONObject) parent).remove(path.substring(lastSlash + 1));
+    }
+
+    private JSONObject newUser(String email) {
+        JSONObject user = new JSONObject();
+        try {
+            user.put("id", mNextId++);
+            user.put("uuid", UUID.randomUUID().toString());
+            user.put("email", email);
+            user.put("aboutMe", JSONObject.NULL);
+            user.put("displayName", JSONObject.NULL);
+        } catch (JSONException e) {
+            throw new RuntimeException("Unexpected", e);
+        }
+        mUsersByEmail.put(email, user);
+        return user;
+    }
+
+    private String newAccessToken(JSONObject user) {
+        String accessToken = UUID.randomUUID().toString().replace("-", "");
+        mUsersByToken.put(accessToken, user);
+        return accessToken;
+    }
+
+    private Transport.Response signedIn(JSONObject user) throws JSONException {
+        return ok(new JSONObject()
+                .put("access_token", newAccessToken(user))
+                .put("capture_user", new JSONObject(user.toString())));
+    }
+
+    private static Transport.Response ok(JSONObject response) throws JSONException {
+        return InMemoryTransport.jsonResponse(200, response.put("stat", "ok").toString());
+    }
+
+    private static Transport.Response error(int code, String error, String description) {
+        JSONObject response = new JSONObject();
+        try {
+            response.put("stat", "error")
+                    .put("code", code)
+                    .put("error", error)
+                    .put("error_description", description);
+        } catch (JSONException e) {
+            throw new RuntimeException("Unexpected", e);
+        }
+        // Capture reports errors with a 200
+        return InMemoryTransport.jsonResponse(200, response.toString());
+    }
+
+    private static String firstNonNull(String a, String b) {
+        return a != null ? a : b;
+    }
+
+    /**
+     * A Capture endpoint, which receives the decoded form parameters of the request
+     */
+    private abstract static class Endpoint implements InMemoryTransport.Responder {
+        public final Transport.Response respond(Transport.Request request) throws IOException {
+            Map<String, String> params = new HashMap<String, String>();
+            parseForm(URI.create(request.url).getRawQuery(), params);
+            if (request.body != null) parseForm(decodeBody(request), params);
+            try {
+                return respond(params);
+            } catch (JSONException e) {
+                return InMemoryTransport.jsonResponse(500, "{\"stat\":\"error\"}");
+            }
+        }
+
+        abstract Transport.Response respond(Map<String, String> params) throws JSONException;
+
+        private static String decodeBody(Transport.Request request) throws IOException {
+            Buffer body = new Buffer().write(request.body);
+            if (!"gzip".equalsIgnoreCase(request.header("Content-Encoding"))) return body.readUtf8();
+
+            BufferedSource gunzipped = Okio.buffer(new GzipSource(body));
+            try {
+                return gunzipped.readUtf8();
+            } finally {
+                gunzipped.close();
+            }
+        }
+
+        private static void parseForm(String form, Map<String, String> params)
+                throws UnsupportedEncodingException {
+            if (form == null) return;
+            for (String pair : form.split("&")) {
+                if (pair.length() == 0) continue;
+                int equals = pair.indexOf('=');
+                String name = equals < 0 ? pair : pair.substring(0, equals);
+                String value = equals < 0 ? "" : pair.substring(equals + 1);
+                params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+        }
+    }
+}
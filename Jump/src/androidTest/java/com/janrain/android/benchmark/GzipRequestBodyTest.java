@@ -0,0 +1,134 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+
+package com.janrain.android.benchmark;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import com.janrain.android.Jump;
+import com.janrain.android.capture.CaptureRecord;
+import com.janrain.android.engage.net.JRConnectionManager;
+import com.janrain.android.engage.net.NetworkMetrics;
+import com.janrain.android.utils.ApiConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that large Capture POST bodies are gzipped, that the stand-in receives them intact, and that other
+ * POSTs are sent as built
+ */
+@RunWith(AndroidJUnit4.class)
+public class GzipRequestBodyTest {
+    private static final String UPDATE_ENDPOINT = "/entity.update";
+
+    private final List<NetworkMetrics.RequestMetrics> mMetrics =
+            new ArrayList<NetworkMetrics.RequestMetrics>();
+    private final NetworkMetrics.Listener mListener = new NetworkMetrics.Listener() {
+        public void onRequestComplete(NetworkMetrics.RequestMetrics metrics) {
+            synchronized (mMetrics) {
+                mMetrics.add(metrics);
+            }
+        }
+    };
+    private CaptureStandIn mStandIn;
+
+    @Before
+    public void setUp() {
+        mStandIn = StandInJump.init(InstrumentationRegistry.getTargetContext());
+        JRConnectionManager.setRequestBodyGzipThreshold(0);
+        JRConnectionManager.addNetworkMetricsListener(mListener);
+    }
+
+    @After
+    public void tearDown() {
+        JRConnectionManager.removeNetworkMetricsListener(mListener);
+        JRConnectionManager.setRequestBodyGzipThreshold(-1);
+    }
+
+    @Test
+    public void captureUpdateIsGzippedAndRoundTrips() throws Exception {
+        String email = "gzip-" + System.nanoTime() + "@standin";
+        mStandIn.addUser(email, CaptureBenchmark.PASSWORD, "Gzip User");
+        CaptureRecord record = CaptureBenchmark.signInTraditional(email);
+
+        String aboutMe = largeText();
+        record.put("aboutMe", aboutMe);
+        CaptureBenchmark.Outcome outcome = new CaptureBenchmark.Outcome();
+        record.synchronize(outcome);
+        outcome.check();
+
+        NetworkMetrics.RequestMetrics update = lastMetricsFor(UPDATE_ENDPOINT);
+        assertTrue("update body wasn't compressed: " + update,
+                update.getRequestWireBytes() < update.getRequestBytes());
+
+        CaptureRecord signedInAgain = CaptureBenchmark.signInTraditional(email);
+        assertEquals(aboutMe, signedInAgain.getString("aboutMe"));
+    }
+
+    @Test
+    public void otherPostsAreNotGzipped() throws Exception {
+        ApiConnection connection = new ApiConnection("https://" + Jump.getCaptureDomain() + UPDATE_ENDPOINT);
+        connection.addAllToParams("value", largeText());
+        connection.fetchResponseMaybeJson(new ApiConnection.FetchCallback() {
+            public void run(Object response) {}
+        });
+
+        NetworkMetrics.RequestMetrics update = lastMetricsFor(UPDATE_ENDPOINT);
+        assertEquals(update.getRequestBytes(), update.getRequestWireBytes());
+    }
+
+    private NetworkMetrics.RequestMetrics lastMetricsFor(String path) {
+        synchronized (mMetrics) {
+            for (int i = mMetrics.size() - 1; i >= 0; i--) {
+                if (mMetrics.get(i).getEndpoint().endsWith(path)) return mMetrics.get(i);
+            }
+        }
+        throw new AssertionError("no request to " + path);
+    }
+
+    private static String largeText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("a compressible line of profile text ").append(i).append('\n');
+        }
+        return text.toString();
+    }
+}
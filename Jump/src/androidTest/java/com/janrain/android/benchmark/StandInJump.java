@@ -0,0 +1,75 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+
+package com.janrain.android.benchmark;
+
+import android.content.Context;
+import com.janrain.android.Jump;
+import com.janrain.android.JumpConfig;
+
+/**
+ * Initializes Jump, once per instrumentation process, against a CaptureStandIn
+ */
+public class StandInJump {
+    private static CaptureStandIn sStandIn;
+
+    private StandInJump() {}
+
+    /**
+     * @param context the instrumentation's target context
+     * @return the stand-in the library's connections are routed to
+     */
+    public static synchronized CaptureStandIn init(Context context) {
+        if (sStandIn != null) return sStandIn;
+
+        sStandIn = new CaptureStandIn();
+        sStandIn.install();
+
+        JumpConfig jumpConfig = new JumpConfig();
+        jumpConfig.engageAppId = "standin";
+        jumpConfig.captureDomain = "standin.janraincapture.com";
+        jumpConfig.captureClientId = "standin";
+        jumpConfig.captureAppId = "standin";
+        jumpConfig.captureFlowName = "standin";
+        jumpConfig.captureFlowVersion = CaptureStandIn.FLOW_VERSION;
+        jumpConfig.captureLocale = "en-US";
+        jumpConfig.traditionalSignInType = Jump.TraditionalSignInType.EMAIL;
+        jumpConfig.captureTraditionalSignInFormName = CaptureStandIn.SIGN_IN_FORM;
+        jumpConfig.captureTraditionalRegistrationFormName = CaptureStandIn.REGISTRATION_FORM;
+        jumpConfig.captureSocialRegistrationFormName = CaptureStandIn.SOCIAL_REGISTRATION_FORM;
+        jumpConfig.captureEditUserProfileFormName = CaptureStandIn.EDIT_PROFILE_FORM;
+        // called without a Looper, so init downloads the flow before returning
+        Jump.init(context.getApplicationContext(), jumpConfig);
+        return sStandIn;
+    }
+}
@@ -40,6 +40,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.support.v4.content.LocalBroadcastManager;
+import android.text.TextUtils;
 
 import com.janrain.android.capture.Capture;
 import com.janrain.android.capture.CaptureApiError;
@@ -48,7 +49,9 @@ import com.janrain.android.capture.CaptureRecord;
 import com.janrain.android.engage.JREngage;
 import com.janrain.android.engage.JREngageDelegate;
 import com.janrain.android.engage.JREngageError;
+import com.janrain.android.engage.net.JRConnectionManager;
 import com.janrain.android.engage.session.JRProvider;
+import com.janrain.android.engage.session.JRSession;
 import com.janrain.android.engage.types.JRDictionary;
 import com.janrain.android.utils.AndroidUtils;
 import com.janrain.android.utils.ApiConnection;
@@ -93,6 +96,9 @@ public class Jump {
 
     private static final String JR_CAPTURE_FLOW = "jr_capture_flow";
 
+    // below this a form body fits in one or two TCP segments anyway
+    private static final int GZIP_REQUEST_BODY_THRESHOLD_BYTES = 1024;
+
     public static final String JR_DOWNLOAD_FLOW_SUCCESS = "com.janrain.android.Jump.DOWNLOAD_FLOW_SUCCESS";
 
     /*package*/ enum State {
@@ -181,6 +187,10 @@ public class Jump {
         state.initCalled = true;
 
         state.context = context;
+        JRConnectionManager.setUseNativeOkHttp(jumpConfig.useNativeOkHttpTransport);
+        CaptureRecord.setStructuralSharing(jumpConfig.captureRecordStructuralSharing);
+        JRConnectionManager.setRequestBodyGzipThreshold(
+                jumpConfig.gzipLargeRequestBodies ? GZIP_REQUEST_BODY_THRESHOLD_BYTES : -1);
         state.jrEngage = JREngage.initInstance(context.getApplicationContext(), jumpConfig.engageAppId,
                 jumpConfig.engageAppUrl, null, null, jumpConfig.customProviders);
         state.captureSocialRegistrationFormName = jumpConfig.captureSocialRegistrationFormName;
@@ -205,8 +215,14 @@ public class Jump {
         state.engageAppUrl = jumpConfig.engageAppUrl;
         state.downloadFlowUrl = jumpConfig.downloadFlowUrl;
 
-
-
+        if (jumpConfig.preconnectOnInit) {
+            String engageHost =
+                    TextUtils.isEmpty(state.engageAppUrl) ? JRSession.RPXNOW_HOST : state.engageAppUrl;
+            JRConnectionManager.preconnectHosts(state.captureDomain, engageHost, getFlowHost());
+        } else {
+            // the Engage app host is pre-resolved by JREngage.initInstance
+            JRConnectionManager.preresolveHosts(state.captureDomain, getFlowHost());
+        }
 
         final Context tempContext = context;
         ThreadUtils.executeInBg(new Runnable() {
@@ -220,7 +236,7 @@ public class Jump {
                     downloadFlow();
                 }
             }
-        });
+        }, ThreadUtils.Priority.BACKGROUND_IO);
     }
 
 
@@ -915,26 +931,23 @@ public class Jump {
         }
     }
 
+    private static String getFlowHost() {
+        if (state.downloadFlowUrl != null && !state.downloadFlowUrl.isEmpty()) return state.downloadFlowUrl;
+        return (state.flowUsesTestingCdn ? "dlzjvycct5xka" : "d1lqe9temigv1p") + ".cloudfront.net";
+    }
+
     private static void downloadFlow() {
         String flowVersion = state.captureFlowVersion != null ? state.captureFlowVersion : "HEAD";
 
-        String flowUrlString = "";
-
-        if(state.downloadFlowUrl != null && !state.downloadFlowUrl.isEmpty()){
-            flowUrlString = String.format("https://%s/widget_data/flows/%s/%s/%s/%s.json",
-                    state.downloadFlowUrl,
-                    state.captureAppId, state.captureFlowName, flowVersion,
-                    state.captureLocale);
-        }else{
-            flowUrlString = String.format("https://%s.cloudfront.net/widget_data/flows/%s/%s/%s/%s.json",
-                    state.flowUsesTestingCdn ? "dlzjvycct5xka" : "d1lqe9temigv1p",
-                    state.captureAppId, state.captureFlowName, flowVersion,
-                    state.captureLocale);
-        }
+        String flowUrlString = String.format("https://%s/widget_data/flows/%s/%s/%s/%s.json",
+                getFlowHost(),
+                state.captureAppId, state.captureFlowName, flowVersion,
+                state.captureLocale);
 
 
         ApiConnection c = new ApiConnection(flowUrlString);
         c.method = ApiConnection.Method.GET;
+        c.priority = ThreadUtils.Priority.BACKGROUND_IO;
         c.fetchResponseAsJson(new ApiConnection.FetchJsonCallback() {
             public void run(JSONObject jsonObject) {
                 if (jsonObject == null) {
@@ -1004,7 +1017,7 @@ public class Jump {
                     }
                 }
             }
-        });
+        }, ThreadUtils.Priority.BACKGROUND_IO);
     }
 
     /**
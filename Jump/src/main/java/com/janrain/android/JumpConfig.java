@@ -209,4 +209,32 @@ public final class JumpConfig {
      */
     public String downloadFlowUrl;
 
+    /**
+     * Set this to true to execute the library's HTTP requests with OkHttp directly instead of through the
+     * Apache HttpClient compatibility bridge. Requests to the same host then share pooled keep-alive
+     * connections. Defaults to false.
+     */
+    public boolean useNativeOkHttpTransport;
+
+    /**
+     * Set this to true to have Jump.init open connections to the Capture domain, the Engage app and the flow
+     * CDN in the background, so that the first sign-in doesn't wait on the TCP and TLS handshakes. The warm
+     * connections are kept alive for a few minutes. Defaults to false.
+     */
+    public boolean preconnectOnInit;
+
+    /**
+     * Set this to true to gzip compress the bodies of large Capture POSTs, like registration forms and entity
+     * updates with plural arrays, before sending them. Requests to Engage and to your token URL are never
+     * compressed. Defaults to false.
+     */
+    public boolean gzipLargeRequestBodies;
+
+    /**
+     * Set this to true to have signed-in CaptureRecords share unchanged subtrees with their original copy
+     * instead of deep copying the user record. Nested values read from such a record are read-only, change
+     * them with CaptureRecord#setAttribute or CaptureRecord#editJSONObject. Defaults to false.
+     */
+    public boolean captureRecordStructuralSharing;
+
 }
@@ -48,6 +48,21 @@ import java.util.regex.Pattern;
         return attrPath.substring(0, n) + number;
     }
 
+    /**
+     * @return true if path is ancestor, or an attribute or plural element under it
+     */
+    /*package*/ static boolean isWithin(String path, String ancestor) {
+        return ancestor.equals("/") || path.equals(ancestor) || path.startsWith(ancestor + "/")
+                || path.startsWith(ancestor + "#");
+    }
+
+    /**
+     * @return true if this change and other may touch a common attribute, and so must be applied in order
+     */
+    /*package*/ boolean overlaps(ApidChange other) {
+        return isWithin(attrPath, other.attrPath) || isWithin(other.attrPath, attrPath);
+    }
+
     @Override
     public String toString() {
         return "<" + getClass().getSimpleName() + " attrPath: " + attrPath + " newVal: " + newVal + ">";
@@ -66,6 +81,14 @@ import java.util.regex.Pattern;
 
     /*package*/ abstract String getUrlFor();
 
+    /**
+     * @return true if applying this change again leaves the record as applying it once does, so a request
+     * which may or may not have reached Capture can be retried
+     */
+    /*package*/ boolean isIdempotent() {
+        return true;
+    }
+
     ///*package*/ void writeConnectionBody(URLConnection urlConnection, String accessToken) throws IOException {
     //    Set<Pair<String, String>> params = getBodyParams();
     //    params.add(new Pair<String, String>("access_token", accessToken));
@@ -0,0 +1,233 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.capture;
+
+import android.util.Pair;
+import com.janrain.android.utils.ApiFuture;
+import com.janrain.android.utils.LogUtils;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.janrain.android.capture.Capture.CaptureApiRequestCallback;
+import static com.janrain.android.utils.ApiConnection.FetchJsonCallback;
+import static com.janrain.android.utils.JsonUtils.unsafeJsonObjectToString;
+
+/**
+ * Sends the changes of a CaptureRecord synchronization, several at a time. Changes are ordered deletes,
+ * then replaces, then updates, shallower attribute paths first, and a change waits only for the earlier
+ * changes whose paths overlap its own; independent changes are in flight concurrently, up to a limit.
+ *
+ * A failed change fails the synchronization, but independent changes are still sent. The changes which
+ * depend on a failed change are not sent.
+ *
+ * Runs on the thread which starts it: with a Looper each response arrives as a callback on it, without one
+ * each change is sent synchronously.
+ */
+/*package*/ class ApidChangeExecutor {
+    /*package*/ static final int MAX_CONCURRENT_CHANGES = 4;
+
+    private final String mAccessToken;
+    private final CaptureApiRequestCallback mCallback;
+    private final ApiFuture<?> mFuture;
+    private final long mDeadline;
+
+    private final List<Node> mReady = new LinkedList<Node>();
+    private final Map<String, CaptureApiError> mFailures = new LinkedHashMap<String, CaptureApiError>();
+    private int mInFlight;
+    private int mOutstanding;
+    private boolean mPumping;
+    private boolean mFinished;
+
+    private static class Node {
+        final ApidChange change;
+        final List<Node> dependents = new ArrayList<Node>();
+        int unmetDependencies;
+        boolean done;
+
+        Node(ApidChange change) {
+            this.change = change;
+        }
+    }
+
+    /**
+     * @param future the future for the synchronization, whose cancellation stops it, or null
+     * @param deadline the deadline shared by all of the changes' requests, or 0
+     */
+    /*package*/ ApidChangeExecutor(String accessToken, CaptureApiRequestCallback callback,
+                                   ApiFuture<?> future, long deadline) {
+        mAccessToken = accessToken;
+        mCallback = callback;
+        mFuture = future;
+        mDeadline = deadline;
+    }
+
+    /*package*/ void execute(Set<ApidChange> changes) {
+        List<Node> nodes = new ArrayList<Node>();
+        for (ApidChange change : changes) nodes.add(new Node(change));
+        Collections.sort(nodes, new Comparator<Node>() {
+            public int compare(Node lhs, Node rhs) {
+                int byKind = kindOrder(lhs.change) - kindOrder(rhs.change);
+                if (byKind != 0) return byKind;
+                return lhs.change.attrPath.length() - rhs.change.attrPath.length();
+            }
+        });
+
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            for (int j = 0; j < i; j++) {
+                if (!nodes.get(j).change.overlaps(node.change)) continue;
+                nodes.get(j).dependents.add(node);
+                node.unmetDependencies++;
+            }
+            if (node.unmetDependencies == 0) mReady.add(node);
+        }
+
+        mOutstanding = nodes.size();
+        pump();
+    }
+
+    private static int kindOrder(ApidChange change) {
+        if (change instanceof ApidDelete) return 0;
+        if (change instanceof ApidReplace) return 1;
+        return 2;
+    }
+
+    /**
+     * Sends ready changes while under the concurrency limit. Re-entrant calls, from changes which complete
+     * synchronously, return at once and leave the sending to the outer call.
+     */
+    private void pump() {
+        if (mPumping) return;
+        mPumping = true;
+        try {
+            while (!mFinished && mInFlight < MAX_CONCURRENT_CHANGES && !mReady.isEmpty()) {
+                if (mFuture != null && mFuture.isDone()) return;
+                send(mReady.remove(0));
+            }
+            if (!mFinished && mOutstanding == 0) finish();
+        } finally {
+            mPumping = false;
+        }
+    }
+
+    private void send(final Node node) {
+        final ApidChange change = node.change;
+        Set<Pair<String, String>> params = new HashSet<Pair<String, String>>(change.getBodyParams());
+        params.add(new Pair<String, String>("access_token", mAccessToken));
+
+        final CaptureApiConnection connection = new CaptureApiConnection(change.getUrlFor());
+        // replaces, deletes and updates without plural elements can be retried, an update which appends
+        // plural elements would add them again
+        connection.idempotent = change.isIdempotent();
+        connection.deadline = mDeadline;
+        connection.addAllToParams(params);
+        if (mFuture != null) {
+            mFuture.onCancel(new Runnable() {
+                public void run() {
+                    connection.stopConnection();
+                }
+            });
+        }
+
+        mInFlight++;
+        connection.fetchResponseAsJson(new FetchJsonCallback() {
+            public void run(final JSONObject content) {
+                mInFlight--;
+                if (content == null) {
+                    onChangeFailed(node, CaptureApiError.INVALID_API_RESPONSE);
+                } else if ("ok".equals(content.opt("stat"))) {
+                    LogUtils.logd("Capture", new LogUtils.LazyMessage() {
+                        public String build() {
+                            return change + "\n" + unsafeJsonObjectToString(content, 2);
+                        }
+                    });
+                    onChangeSucceeded(node);
+                } else {
+                    onChangeFailed(node, new CaptureApiError(content, null, null));
+                }
+                pump();
+            }
+        });
+    }
+
+    private void onChangeSucceeded(Node node) {
+        node.done = true;
+        mOutstanding--;
+        for (Node dependent : node.dependents) {
+            if (--dependent.unmetDependencies == 0) mReady.add(dependent);
+        }
+    }
+
+    private void onChangeFailed(Node node, CaptureApiError error) {
+        node.done = true;
+        mOutstanding--;
+        mFailures.put(node.change.attrPath, error);
+        skipDependents(node, node.change.attrPath);
+    }
+
+    private void skipDependents(Node node, String failedPath) {
+        for (Node dependent : node.dependents) {
+            if (dependent.done) continue;
+            dependent.done = true;
+            mOutstanding--;
+            mFailures.put(dependent.change.attrPath,
+                    new CaptureApiError("Not sent, depends on the failed change of " + failedPath));
+            skipDependents(dependent, failedPath);
+        }
+    }
+
+    private void finish() {
+        mFinished = true;
+        if (mCallback == null) return;
+
+        if (mFailures.isEmpty()) {
+            mCallback.onSuccess();
+            return;
+        }
+
+        if (mCallback instanceof CaptureRecord.SynchronizeCallback) {
+            ((CaptureRecord.SynchronizeCallback) mCallback).onChangesFailed(
+                    Collections.unmodifiableMap(mFailures));
+        }
+        mCallback.onFailure(mFailures.values().iterator().next());
+    }
+}
@@ -34,9 +34,11 @@ package com.janrain.android.capture;
 
 import android.util.Pair;
 import com.janrain.android.utils.JsonUtils;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 
 /*package*/ class ApidUpdate extends ApidChange {
@@ -51,6 +53,28 @@ import java.util.Set;
                 (JSONObject) update.newVal), attrPath);
     }
 
+    @Override
+    /*package*/ boolean isIdempotent() {
+        return !mayAppendPluralElements(newVal);
+    }
+
+    /**
+     * An update whose value holds an array may add elements to a plural each time it is applied, so such
+     * updates are never treated as idempotent
+     * @param value the value of an update
+     * @return true if value is or contains a JSONArray
+     */
+    /*package*/ static boolean mayAppendPluralElements(Object value) {
+        if (value instanceof JSONArray) return true;
+        if (!(value instanceof JSONObject)) return false;
+        JSONObject object = (JSONObject) value;
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            if (mayAppendPluralElements(object.opt(keys.next()))) return true;
+        }
+        return false;
+    }
+
     @Override
     /*package*/ String getUrlFor() {
         return "/entity.update";
@@ -34,6 +34,7 @@ package com.janrain.android.capture;
 
 import com.janrain.android.Jump;
 import com.janrain.android.utils.ApiConnection;
+import com.janrain.android.utils.ApiFuture;
 import org.json.JSONObject;
 
 import java.security.SecureRandom;
@@ -123,6 +124,23 @@ public class Capture {
         }
     }
 
+    /**
+     * The failure of a future returned by one of the future variants of the Capture operations, e.g.
+     * performTraditionalSignInFuture. Carries the CaptureApiError the operation failed with.
+     */
+    public static class CaptureApiException extends Exception {
+        private final CaptureApiError error;
+
+        public CaptureApiException(CaptureApiError error) {
+            super(String.valueOf(error));
+            this.error = error;
+        }
+
+        public CaptureApiError getError() {
+            return error;
+        }
+    }
+
     /**
      * An interface used to communicate Capture API request results, or errors.
      */
@@ -139,6 +157,79 @@ public class Capture {
         public void onFailure(CaptureApiError e);
     }
 
+    /**
+     * Like performTraditionalSignIn, but returns the result as a future. The future fails with a
+     * CaptureApiException, and cancelling it stops the request.
+     *
+     * @param username The username (or email address).
+     * @param password The password
+     * @param mergeToken the merge token for this sign-in, if any
+     * @return a future for the signed-in user's record
+     */
+    public static ApiFuture<CaptureRecord> performTraditionalSignInFuture(String username,
+                                                                          String password,
+                                                                          String mergeToken) {
+        ApiFuture<CaptureRecord> future = new ApiFuture<CaptureRecord>();
+        SignInResultHandler handler = signInFutureHandler(future);
+        stopOnCancel(future, handler, performTraditionalSignIn(username, password, handler, mergeToken));
+        return future;
+    }
+
+    /**
+     * Like performSocialSignIn, but returns the result as a future. The future fails with a
+     * CaptureApiException, and cancelling it stops the request.
+     *
+     * @return a future for the signed-in user's record
+     */
+    public static ApiFuture<CaptureRecord> performSocialSignInFuture(String authInfoToken,
+                                                                     String identityProvider,
+                                                                     String mergeToken) {
+        ApiFuture<CaptureRecord> future = new ApiFuture<CaptureRecord>();
+        SignInResultHandler handler = signInFutureHandler(future);
+        stopOnCancel(future, handler, performSocialSignIn(authInfoToken, handler, identityProvider,
+                mergeToken));
+        return future;
+    }
+
+    private static SignInResultHandler signInFutureHandler(final ApiFuture<CaptureRecord> future) {
+        return new SignInResultHandler() {
+            @Override
+            public void onSuccess(CaptureRecord record, JSONObject response) {
+                future.complete(record);
+            }
+
+            @Override
+            public void onFailure(CaptureApiError error) {
+                future.fail(new CaptureApiException(error));
+            }
+        };
+    }
+
+    private static void stopOnCancel(ApiFuture<?> future, final SignInResultHandler handler,
+                                     final ApiConnection connection) {
+        future.onCancel(new Runnable() {
+            public void run() {
+                handler.cancel();
+                if (connection != null) connection.stopConnection();
+            }
+        });
+    }
+
+    /**
+     * @return a CaptureApiRequestCallback which completes future
+     */
+    /*package*/ static CaptureApiRequestCallback futureCallback(final ApiFuture<Void> future) {
+        return new CaptureApiRequestCallback() {
+            public void onSuccess() {
+                future.complete(null);
+            }
+
+            public void onFailure(CaptureApiError e) {
+                future.fail(new CaptureApiException(e));
+            }
+        };
+    }
+
     /**
      * Performs a social sign-in to Capture with the given Engage auth_info token
      *
@@ -350,6 +441,21 @@ public class Capture {
         return c;
     }
 
+    /**
+     * Like updateUserProfile, but returns the result as a future. The future fails with a
+     * CaptureApiException, and cancelling it stops the request.
+     */
+    public static ApiFuture<Void> updateUserProfileFuture(CaptureRecord user) {
+        ApiFuture<Void> future = new ApiFuture<Void>();
+        final CaptureApiConnection c = updateUserProfile(user, futureCallback(future));
+        future.onCancel(new Runnable() {
+            public void run() {
+                c.stopConnection();
+            }
+        });
+        return future;
+    }
+
     private static CaptureApiConnection getUpdateUserProfileConnection(CaptureRecord user) {
         String editProfileForm = Jump.getCaptureEditUserProfileFormName();
 
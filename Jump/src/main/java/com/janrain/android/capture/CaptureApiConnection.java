@@ -32,8 +32,11 @@
 
 package com.janrain.android.capture;
 
+import com.janrain.android.engage.net.RequestTimeoutException;
 import com.janrain.android.utils.ApiConnection;
 import com.janrain.android.utils.LogUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import static com.janrain.android.Jump.getCaptureDomain;
 import static com.janrain.android.Jump.getCustomUserAgentContext;
@@ -43,6 +46,8 @@ public class CaptureApiConnection extends ApiConnection {
 
     /*package*/ CaptureApiConnection(String relativeUrl) {
         super("https://" + getCaptureDomain() + relativeUrl);
+        // Capture accepts gzip encoded request bodies, Engage and integrators' token URLs may not
+        compressBody = true;
         if (!relativeUrl.startsWith("/")) {
             throwDebugException(new RuntimeException("bad looking relative URL. Should start with /"));
         }
@@ -51,6 +56,31 @@ public class CaptureApiConnection extends ApiConnection {
     @Override
     public void fetchResponseMaybeJson(final FetchCallback callback) {
         addCustomUserAgent(getCustomUserAgentContext());
-        super.fetchResponseMaybeJson(callback);
+        super.fetchResponseMaybeJson(new FetchCallback() {
+            public void run(Object response) {
+                if (response instanceof RequestTimeoutException) {
+                    callback.run(timeoutResponse((RequestTimeoutException) response));
+                } else {
+                    callback.run(response);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return a Capture style error response for a timed out request, which result handlers turn into a
+     * CaptureApiError with the code CaptureApiError.REQUEST_TIMEOUT
+     */
+    private static JSONObject timeoutResponse(RequestTimeoutException e) {
+        JSONObject response = new JSONObject();
+        try {
+            response.put("stat", "error");
+            response.put("code", CaptureApiError.REQUEST_TIMEOUT);
+            response.put("error", "request_timeout");
+            response.put("error_description", e.isDeadlineExceeded() ? "deadline exceeded" : e.getMessage());
+        } catch (JSONException jsonException) {
+            throwDebugException(new RuntimeException(jsonException));
+        }
+        return response;
     }
 }
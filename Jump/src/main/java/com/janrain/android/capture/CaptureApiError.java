@@ -73,6 +73,12 @@ public class CaptureApiError {
      */
     public static final int RECORD_NOT_FOUND = 310;
 
+    /**
+     * Indicates that the request timed out, either stalling on the network or passing its deadline, and
+     * that its outcome is unknown. Not a Capture error code, it's never returned by the Capture service.
+     */
+    public static final int REQUEST_TIMEOUT = -2;
+
     /**
      * Generic Error
      */
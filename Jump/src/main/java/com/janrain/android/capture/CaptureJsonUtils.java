@@ -36,17 +36,18 @@ import com.janrain.android.utils.JsonUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import static com.janrain.android.capture.Capture.InvalidApidChangeException;
-import static com.janrain.android.utils.CollectionUtils.sortedSetFromIterator;
 
 public class CaptureJsonUtils {
     private CaptureJsonUtils() {}
@@ -65,21 +66,135 @@ public class CaptureJsonUtils {
      */
     public static Set<ApidChange> compileChangeSet(JSONObject original, JSONObject current)
             throws InvalidApidChangeException {
-        return compileChangeSet(original, current, "/");
+        return compileChangeSet(nodeOf(original), nodeOf(current));
     }
 
-    private static Set<ApidChange> compileChangeSet(JSONArray original, JSONArray current,
-                                                              String arrayAttrPath)
+    /**
+     * Like JsonNode.of, but reports a value which isn't JSON, like a Float put in a record, as an
+     * InvalidApidChangeException
+     */
+    /*package*/ static JsonNode nodeOf(Object val) throws InvalidApidChangeException {
+        return nodeOf(val, null, false);
+    }
+
+    /**
+     * Like nodeOf(Object), reusing the nodes of unwritten containers as JsonNode.of(Object, Map, boolean)
+     */
+    /*package*/ static JsonNode nodeOf(Object val, Map<Object, JsonNode> sharedNodes, boolean addToNodes)
+            throws InvalidApidChangeException {
+        try {
+            return JsonNode.of(val, sharedNodes, addToNodes);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidApidChangeException(e.getMessage());
+        }
+    }
+
+    /*package*/ static Set<ApidChange> compileChangeSet(JsonNode original, JsonNode current)
+            throws InvalidApidChangeException {
+        Set<ApidChange> changeSet = new HashSet<ApidChange>();
+        if (!original.sameContent(current)) compileChangeSetForObject(original, current, "/", changeSet);
+        return changeSet;
+    }
+
+    /**
+     * Like compileChangeSet(JSONObject, JSONObject), but only diffs the subtrees of the records at the given
+     * attribute paths, e.g. those a CaptureRecord recorded as dirty. A path into a plural element diffs the
+     * whole plural.
+     *
+     * @param original the original copy of the record
+     * @param current the current version of the record
+     * @param attrPaths the attribute paths of the changed subtrees, like /primaryAddress/city
+     * @return A set of ApidChanges to effect the diff
+     * @throws InvalidApidChangeException as for compileChangeSet(JSONObject, JSONObject)
+     */
+    public static Set<ApidChange> compileChangeSet(JSONObject original, JSONObject current,
+                                                   Collection<String> attrPaths)
+            throws InvalidApidChangeException {
+        return compileChangeSet(nodeOf(original), current, attrPaths);
+    }
+
+    /*package*/ static Set<ApidChange> compileChangeSet(JsonNode original, JSONObject current,
+                                                      Collection<String> attrPaths)
+            throws InvalidApidChangeException {
+        return compileChangeSet(original, current, attrPaths, null);
+    }
+
+    /**
+     * Like compileChangeSet(JsonNode, JSONObject, Collection), reusing the nodes in sharedNodes of the
+     * containers current shares with the original, see nodeOf(Object, Map, boolean)
+     */
+    /*package*/ static Set<ApidChange> compileChangeSet(JsonNode original, JSONObject current,
+                                                      Collection<String> attrPaths,
+                                                      Map<Object, JsonNode> sharedNodes)
+            throws InvalidApidChangeException {
+        List<String> subtrees = new ArrayList<String>();
+        for (String attrPath : attrPaths) {
+            int pluralElement = attrPath.indexOf('#');
+            String subtree = pluralElement == -1 ? attrPath : attrPath.substring(0, pluralElement);
+            if (!subtree.startsWith("/")) subtree = "/" + subtree;
+            while (subtree.length() > 1 && subtree.endsWith("/")) {
+                subtree = subtree.substring(0, subtree.length() - 1);
+            }
+            subtrees.add(subtree);
+        }
+        // diff each subtree once, skipping those within another
+        Collections.sort(subtrees, new Comparator<String>() {
+            public int compare(String lhs, String rhs) {
+                return lhs.length() - rhs.length();
+            }
+        });
+
+        Set<ApidChange> changeSet = new HashSet<ApidChange>();
+        List<String> diffed = new ArrayList<String>();
+        outer:
+        for (String subtree : subtrees) {
+            if (subtree.equals("/")) return compileChangeSet(original, nodeOf(current, sharedNodes, false));
+            for (String d : diffed) if (ApidChange.isWithin(subtree, d)) continue outer;
+            diffed.add(subtree);
+
+            String key = CaptureStringUtils.getLastPathElement(subtree);
+            String parentPath = subtree.substring(0, subtree.length() - key.length());
+            JsonNode originalParent = original;
+            Object currentParent = current;
+            for (String segment : parentPath.split("/")) {
+                if (segment.length() == 0) continue;
+                if (originalParent == null || originalParent.kind != JsonNode.OBJECT) break;
+                if (!(currentParent instanceof JSONObject)) break;
+                originalParent = originalParent.get(segment);
+                currentParent = ((JSONObject) currentParent).opt(segment);
+            }
+            if (originalParent == null || originalParent.kind != JsonNode.OBJECT ||
+                    !(currentParent instanceof JSONObject)) {
+                throw new InvalidApidChangeException("Unexpected type(s) at " + parentPath);
+            }
+
+            JsonNode originalVal = originalParent.get(key);
+            Object currentVal = ((JSONObject) currentParent).opt(key);
+            if (currentVal != null && originalVal == null) {
+                throw new InvalidApidChangeException("Can't add new keys to JSONObjects. New keys: " +
+                        subtree);
+            }
+            if (originalVal != null && currentVal == null) {
+                throw new InvalidApidChangeException("Cannot delete keys from JSONObjects. Removed keys: " +
+                        subtree);
+            }
+            if (originalVal == null) continue;
+
+            JsonNode currentNode = nodeOf(currentVal, sharedNodes, false);
+            compileChangeSetForValue(originalVal, currentNode, parentPath, key, changeSet);
+        }
+
+        return changeSet;
+    }
+
+    private static void compileChangeSetForArray(JsonNode original, JsonNode current, String arrayAttrPath,
+                                                 Set<ApidChange> changeSet)
             throws InvalidApidChangeException {
         if (hasIds(original)) {
-            return compileChangeSetForArrayWithIds(original, current, arrayAttrPath);
-        } else {
+            compileChangeSetForArrayWithIds(original, current, arrayAttrPath, changeSet);
+        } else if (!original.sameContent(current)) {
             // original array must've been from a JSON blob
-            Set<ApidChange> changeSet = new HashSet<ApidChange>();
-            if (JsonUtils.compareJsonVals(original, current) != 0) {
-                changeSet.add(new ApidUpdate(current, arrayAttrPath));
-            }
-            return changeSet;
+            changeSet.add(new ApidUpdate(current.toJson(), arrayAttrPath));
         }
     }
 
@@ -98,121 +213,127 @@ public class CaptureJsonUtils {
         return false;
     }
 
-    private static Set<ApidChange> compileChangeSetForArrayWithIds(JSONArray original,
-                                                                   JSONArray current,
-                                                                   String arrayAttrPath)
+    private static boolean hasIds(JsonNode array) {
+        for (int i = 0; i < array.size(); i++) {
+            JsonNode element = array.get(i);
+            if (element.kind == JsonNode.OBJECT && element.hasId()) return true;
+        }
+        return false;
+    }
+
+    private static void compileChangeSetForArrayWithIds(JsonNode original, JsonNode current,
+                                                        String arrayAttrPath, Set<ApidChange> changeSet)
             throws InvalidApidChangeException {
-        Set<ApidChange> changeSet = new HashSet<ApidChange>();
         String arrayAttrName = CaptureStringUtils.getLastPathElement(arrayAttrPath);
         String relativePath = arrayAttrPath.substring(0, arrayAttrPath.length() - arrayAttrName.length());
 
-        JSONArray sortedOriginal = sortPlurEltsById(original);
-        JSONArray sortedCurrent = sortPlurEltsById(current);
-
-        int originalIndex = 0;
-        for (int currentIndex = 0; currentIndex < sortedCurrent.length(); currentIndex++) {
-            Long currentId = getIdForPlurEltAtIndex(sortedCurrent, currentIndex);
-            Object currentElt = sortedCurrent.opt(currentIndex);
-
-            if (currentId == null) {
+        // hash join the elements by id: index the original elements, then probe with each current element
+        PluralIdIndex originalIndex = new PluralIdIndex(original);
+        boolean[] matched = new boolean[original.size()];
+        for (int i = 0; i < current.size(); i++) {
+            JsonNode currentElt = current.get(i);
+            if (!hasId(currentElt)) {
                 // new element
-                JSONArray wrapperArray = new JSONArray(Arrays.asList(new Object[]{currentElt}));
+                JSONArray wrapperArray = new JSONArray(Arrays.asList(new Object[]{currentElt.toJson()}));
                 JSONObject wrapperObject = new JSONObject();
                 JsonUtils.jsonObjectUnsafePut(wrapperObject, arrayAttrName, wrapperArray);
                 changeSet.add(new ApidUpdate(wrapperObject, relativePath));
-            } else {
-                // update to existing id
-                Long originalId = null;
-                while (originalIndex < sortedOriginal.length()) { // try to find a matching id in original
-                    originalId = getIdForPlurEltAtIndex(sortedOriginal, originalIndex);
-                    if (currentId <= originalId) break;
-                    changeSet.add(new ApidDelete(relativePath + "#" + originalId));
-                    originalIndex++;
-                }
+                continue;
+            }
 
-                if (currentId.equals(originalId)) {
-                    JSONObject originalElt;
-                    originalElt = (JSONObject) sortedOriginal.opt(originalIndex++);
-                    changeSet.addAll(compileChangeSet(originalElt, (JSONObject) currentElt,
-                            relativePath + "/" + arrayAttrName + "#" + currentId));
-                } else {
-                    throw new InvalidApidChangeException("Cannot assign ID to new plural elements");
-                }
+            // update to existing id
+            long currentId = getId(currentElt);
+            int originalEltIndex = originalIndex.indexOf(currentId);
+            if (originalEltIndex == -1 || matched[originalEltIndex]) {
+                throw new InvalidApidChangeException("Cannot assign ID to new plural elements");
+            }
+            matched[originalEltIndex] = true;
+
+            JsonNode originalElt = original.get(originalEltIndex);
+            // changed elements are told apart by their content hashes, shared ones skipped by identity
+            if (!originalElt.sameContent(currentElt)) {
+                compileChangeSetForObject(originalElt, currentElt,
+                        relativePath + "/" + arrayAttrName + "#" + currentId, changeSet);
             }
         }
 
-        while (originalIndex < sortedOriginal.length()) {
-            Long idForPlurEltAtIndex = getIdForPlurEltAtIndex(sortedOriginal, originalIndex++);
-            changeSet.add(new ApidDelete(relativePath + "#" + idForPlurEltAtIndex));
+        for (int i = 0; i < matched.length; i++) {
+            if (!matched[i]) changeSet.add(new ApidDelete(relativePath + "#" + getId(original.get(i))));
         }
+    }
 
-        return changeSet;
+    private static boolean hasId(JsonNode element) {
+        return element.kind == JsonNode.OBJECT && element.hasId();
     }
 
-    private static void inPlaceSortByEltIds(JSONArray original, int start, int len) {
-        if (len <= 1) return;
-
-        int halfLen = len / 2;
-        int left = start;
-        int right = start + halfLen;
-
-        inPlaceSortByEltIds(original, left, halfLen);
-        inPlaceSortByEltIds(original, right, len - halfLen);
-
-        Object[] temp = new Object[len];
-        int tempIndex = 0;
-
-        while (left < start + halfLen || right < start + len) {
-            Object leftVal = original.opt(left);
-            Object rightVal = original.opt(right);
-            if (left < start + halfLen && right < start + len) {
-                Long leftId = getIdForPlurEltAtIndex(original, left);
-                Long rightId = getIdForPlurEltAtIndex(original, right);
-                boolean bothIdsNull = leftId == null && rightId == null;
-                leftId = leftId == null ? 0 : leftId;
-                rightId = rightId == null ? 0 : rightId;
-                if (bothIdsNull && JsonUtils.compareJsonVals(leftVal, rightVal) < 0 || leftId < rightId) {
-                    temp[tempIndex++] = leftVal;
-                    left++;
-                } else  {
-                    temp[tempIndex++] = rightVal;
-                    right++;
-                }
-            } else if (left < start + halfLen) {
-                temp[tempIndex++] = leftVal;
-                left++;
-            } else {
-                temp[tempIndex++] = rightVal;
-                right++;
+    private static long getId(JsonNode element) {
+        return hasId(element) ? element.get("id").longValue() : 0;
+    }
+
+    /**
+     * An open addressing table from plural element id to element index, keyed by primitive longs. Of elements
+     * with the same id only the first is indexed.
+     */
+    private static class PluralIdIndex {
+        private final long[] ids;
+        private final int[] indices;
+        private final int mask;
+
+        PluralIdIndex(JsonNode plural) {
+            int capacity = Integer.highestOneBit(Math.max(plural.size(), 1) * 2) * 2;
+            ids = new long[capacity];
+            indices = new int[capacity];
+            Arrays.fill(indices, -1);
+            mask = capacity - 1;
+
+            for (int i = 0; i < plural.size(); i++) {
+                if (!hasId(plural.get(i))) continue;
+                long id = getId(plural.get(i));
+                int slot = slotFor(id);
+                while (indices[slot] != -1 && ids[slot] != id) slot = (slot + 1) & mask;
+                if (indices[slot] != -1) continue;
+                ids[slot] = id;
+                indices[slot] = i;
             }
         }
 
-        for (int i=0; i < temp.length; i++) JsonUtils.jsonArrayUnsafePut(original, start + i, temp[i]);
-    }
-
-    private static JSONArray sortPlurEltsById(JSONArray original) {
-        JSONArray copy = (JSONArray) JsonUtils.copyJsonVal(original);
-        inPlaceSortByEltIds(copy, 0, original.length());
-        return copy;
-    }
+        int indexOf(long id) {
+            int slot = slotFor(id);
+            while (indices[slot] != -1) {
+                if (ids[slot] == id) return indices[slot];
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
 
-    private static Long getIdForPlurEltAtIndex(JSONArray array, int index) {
-        Object element = array.opt(index);
-        if (element instanceof JSONObject) return (Long) ((JSONObject) element).opt("id");
-        return null;
+        private int slotFor(long id) {
+            long h = id * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
     }
 
-    private static Set<ApidChange> compileChangeSet(JSONObject original, JSONObject current,
-                                                    String relativePath)
+    private static void compileChangeSetForObject(JsonNode original, JsonNode current, String relativePath,
+                                                  Set<ApidChange> changeSet)
             throws InvalidApidChangeException {
-        SortedSet<String> originalKeys = sortedSetFromIterator((Iterator<String>) original.keys());
-        SortedSet<String> currentKeys = sortedSetFromIterator((Iterator<String>) current.keys());
-
-        SortedSet<String> newKeys = new TreeSet<String>(currentKeys);
-        newKeys.removeAll(originalKeys);
-
-        SortedSet<String> goneKeys = new TreeSet<String>(originalKeys);
-        goneKeys.removeAll(currentKeys);
+        String[] originalKeys = original.keys();
+        String[] currentKeys = current.keys();
+
+        // both key arrays are sorted, so new and gone keys fall out of a single merge
+        List<String> newKeys = new ArrayList<String>();
+        List<String> goneKeys = new ArrayList<String>();
+        int i = 0, j = 0;
+        while (i < originalKeys.length || j < currentKeys.length) {
+            int keyOrder = i == originalKeys.length ? 1 : j == currentKeys.length ? -1
+                    : originalKeys[i].compareTo(currentKeys[j]);
+            if (keyOrder < 0) {
+                goneKeys.add(originalKeys[i++]);
+            } else if (keyOrder > 0) {
+                newKeys.add(currentKeys[j++]);
+            } else {
+                i++;
+                j++;
+            }
+        }
 
         if (newKeys.size() > 0) {
             throw new InvalidApidChangeException("Can't add new keys to JSONObjects. New keys: " +
@@ -224,46 +345,36 @@ public class CaptureJsonUtils {
                     "keys: " + goneKeys.toString());
         }
 
-        SortedSet<String> intersectionKeys = new TreeSet<String>(originalKeys);
-        intersectionKeys.removeAll(goneKeys);
-
-        return compileChangeSet(original, current, relativePath, intersectionKeys);
+        for (int k = 0; k < originalKeys.length; k++) {
+            compileChangeSetForValue(original.get(k), current.get(k), relativePath, originalKeys[k],
+                    changeSet);
+        }
     }
 
-    private static Set<ApidChange> compileChangeSet(JSONObject original, JSONObject current,
-                                                    String relativePath, Set<String> forKeys)
+    private static void compileChangeSetForValue(JsonNode oldVal, JsonNode curVal, String relativePath,
+                                                 String k, Set<ApidChange> changeSet)
             throws InvalidApidChangeException {
-        Set<ApidChange> changeSet = new HashSet<ApidChange>();
-        for (String k : forKeys) {
-            Object curVal = current.opt(k);
-            Object oldVal = original.opt(k);
-            if (curVal instanceof JSONObject && oldVal instanceof JSONObject) {
-                changeSet.addAll(compileChangeSet(((JSONObject) oldVal), ((JSONObject) curVal),
-                        relativePath + k + "/"));
-            } else if (curVal instanceof JSONArray && oldVal instanceof JSONArray) {
-                changeSet.addAll(compileChangeSet(((JSONArray) oldVal), ((JSONArray) curVal),
-                        relativePath + k));
-            } else if (curVal instanceof String || curVal instanceof Boolean || curVal instanceof Double ||
-                    curVal instanceof Integer || curVal instanceof Long || curVal.equals(JSONObject.NULL)) {
-                if (!JSONObject.NULL.equals(oldVal) &&
-                        !oldVal.getClass().isAssignableFrom(curVal.getClass())) {
-                    throw createInvalidTypeException(curVal, oldVal);
-                }
-
-                if (JsonUtils.compareJsonVals(curVal, oldVal) != 0) {
-                    changeSet.add(new ApidUpdate(curVal, relativePath + k));
-                }
-            } else {
+        // changed subtrees are told apart by their content hashes, shared ones skipped by identity
+        if (oldVal.sameContent(curVal)) return;
+
+        if (curVal.kind == JsonNode.OBJECT && oldVal.kind == JsonNode.OBJECT) {
+            compileChangeSetForObject(oldVal, curVal, relativePath + k + "/", changeSet);
+        } else if (curVal.kind == JsonNode.ARRAY && oldVal.kind == JsonNode.ARRAY) {
+            compileChangeSetForArray(oldVal, curVal, relativePath + k, changeSet);
+        } else if (curVal.kind != JsonNode.OBJECT && curVal.kind != JsonNode.ARRAY) {
+            if (oldVal.kind != JsonNode.NULL && oldVal.kind != curVal.kind) {
                 throw createInvalidTypeException(curVal, oldVal);
             }
-        }
 
-        return changeSet;
+            changeSet.add(new ApidUpdate(curVal.toJson(), relativePath + k));
+        } else {
+            throw createInvalidTypeException(curVal, oldVal);
+        }
     }
 
-    private static InvalidApidChangeException createInvalidTypeException(Object curVal, Object oldVal) {
+    private static InvalidApidChangeException createInvalidTypeException(JsonNode curVal, JsonNode oldVal) {
         return new InvalidApidChangeException("Unexpected type(s). Old type: " +
-                oldVal.getClass().getSimpleName() + " New type: " + curVal.getClass().getSimpleName());
+                oldVal.getKindName() + " New type: " + curVal.getKindName());
     }
 
     public static String valueForAttrByDotPath(JSONObject user, String attrDothPath) {
@@ -35,44 +35,43 @@ package com.janrain.android.capture;
 import android.content.Context;
 import android.text.TextUtils;
 import android.util.Base64;
-import android.util.Pair;
 import com.janrain.android.Jump;
 import com.janrain.android.utils.ApiConnection;
+import com.janrain.android.utils.ApiFuture;
 import com.janrain.android.utils.JsonUtils;
-import com.janrain.android.utils.LogUtils;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 import static android.R.attr.password;
 import static com.janrain.android.capture.Capture.CaptureApiRequestCallback;
 import static com.janrain.android.capture.Capture.InvalidApidChangeException;
 import static com.janrain.android.utils.ApiConnection.FetchJsonCallback;
 import static com.janrain.android.utils.JsonUtils.copyJsonVal;
-import static com.janrain.android.utils.JsonUtils.unsafeJsonObjectToString;
 import static com.janrain.android.utils.LogUtils.throwDebugException;
 
 public class CaptureRecord extends JSONObject {
     private static final SimpleDateFormat CAPTURE_API_SIGNATURE_DATE_FORMAT;
-    private static final String JR_CAPTURE_SIGNED_IN_USER_FILENAME = "jr_capture_signed_in_user";
 
     static {
         CAPTURE_API_SIGNATURE_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -81,6 +80,32 @@ public class CaptureRecord extends JSONObject {
 
     private JSONObject original;
 
+    // original as diffed by getApidChangeSet, built on first use and again after original is advanced
+    private JsonNode originalNode;
+
+    // null unless this record shares subtrees with original, else the nodes of the containers of original
+    // and of queued baselines. Those containers are never written, so the diffs and saves of this record
+    // reuse their nodes instead of rebuilding the subtrees it still shares with them. Keyed by identity since
+    // Android's JSONArray overrides equals and hashCode, and rebuilt once no queued baseline is pending so
+    // that it doesn't keep the containers of superseded baselines.
+    private Map<Object, JsonNode> unwrittenNodes;
+
+    // the state last queued with CaptureWriteQueue.synchronize until Capture has applied it, memory only
+    private JSONObject queuedBaseline;
+    private JsonNode queuedBaselineNode;
+
+    // the changes Capture didn't apply of the queued synchronizations finished since queuedBaseline was set,
+    // reverted from the baselines of those still pending as they finish, memory only
+    private final List<ApidChange> queuedRejections = new ArrayList<ApidChange>();
+
+    private static volatile boolean sStructuralSharing;
+
+    // null unless dirty path tracking is enabled
+    private Set<String> dirtyPaths;
+
+    // null unless this record shares unchanged subtrees with original, else the containers it owns
+    private Set<Object> ownedContainers;
+
     /*package*/ String accessToken;
 
     private CaptureRecord(){}
@@ -94,10 +119,37 @@ public class CaptureRecord extends JSONObject {
         super();
 
         original = (JSONObject) copyJsonVal(jo);
-        JsonUtils.deepCopy(original, this);
+        if (sStructuralSharing) {
+            ownedContainers = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            ownedContainers.add(this);
+            Iterator<String> keys = original.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JsonUtils.jsonObjectUnsafePut(this, key, original.opt(key));
+            }
+            dirtyPaths = new HashSet<String>();
+        } else {
+            JsonUtils.deepCopy(original, this);
+        }
         this.accessToken = accessToken;
     }
 
+    /**
+     * Enables or disables structural sharing for records created by subsequent sign-ins. A sharing record
+     * doesn't copy the signed-in user a second time; instead it shares every subtree with its original
+     * copy until that subtree is written through setAttribute or editJSONObject, which copy just the
+     * containers on the path to the written attribute. Sharing records also track dirty paths, see
+     * setDirtyPathTracking.
+     *
+     * Nested JSONObjects and JSONArrays read from a sharing record must be treated as read-only, writing
+     * to them directly would also change the original copy and the change would never be synchronized.
+     *
+     * @param enabled true to create sharing records, defaults to false
+     */
+    public static void setStructuralSharing(boolean enabled) {
+        sStructuralSharing = enabled;
+    }
+
     /**
      * @deprecated
      *
@@ -114,29 +166,10 @@ public class CaptureRecord extends JSONObject {
      * @return the loaded record, or null
      */
     public static CaptureRecord loadFromDisk(Context applicationContext) {
-        String fileContents = null;
-        FileInputStream fis = null;
-        try {
-            fis = applicationContext.openFileInput(JR_CAPTURE_SIGNED_IN_USER_FILENAME);
-            fileContents = CaptureStringUtils.readAndClose(fis);
-            fis = null;
-            return inflateCaptureRecord(fileContents);
-        } catch (FileNotFoundException ignore) {
-        } catch (JSONException ignore) {
-            throwDebugException(new RuntimeException("Bad CaptureRecord file contents:\n" + fileContents,
-                    ignore));
-        } finally {
-            if (fis != null) try {
-                fis.close();
-            } catch (IOException e) {
-                throwDebugException(new RuntimeException(e));
-            }
-        }
-        return null;
+        return CaptureRecordStore.getInstance(applicationContext).load();
     }
 
-    private static CaptureRecord inflateCaptureRecord(String jsonifiedRecord) throws JSONException {
-        JSONObject serializedVersion = new JSONObject(jsonifiedRecord);
+    /*package*/ static CaptureRecord inflateCaptureRecord(JSONObject serializedVersion) throws JSONException {
         CaptureRecord inflatedRecord = new CaptureRecord();
         inflatedRecord.original = serializedVersion.getJSONObject("original");
         inflatedRecord.accessToken = serializedVersion.getString("accessToken");
@@ -145,43 +178,29 @@ public class CaptureRecord extends JSONObject {
     }
 
     /**
-     * Saves the Capture record to a well-known private file on disk.
-     * @param applicationContext the context to use to write to disk
+     * @return the original serialized by org.json
      */
-    public void saveToDisk(Context applicationContext) {
-        FileOutputStream fos = null;
-        try {
-            fos = applicationContext.openFileOutput(JR_CAPTURE_SIGNED_IN_USER_FILENAME, 0);
-            fos.write(deflateCaptureRecord());
-        } catch (JSONException e) {
-            throwDebugException(new RuntimeException("Unexpected", e));
-        } catch (UnsupportedEncodingException e) {
-            throwDebugException(new RuntimeException("Unexpected", e));
-        } catch (IOException e) {
-            throwDebugException(new RuntimeException("Unexpected", e));
-        } finally {
-            if (fos != null) try {
-                fos.close();
-            } catch (IOException e) {
-                throwDebugException(new RuntimeException("Unexpected", e));
-            }
-        }
+    /*package*/ String originalToString() {
+        return original.toString();
     }
 
-    private byte[] deflateCaptureRecord() throws JSONException, UnsupportedEncodingException {
-        JSONObject serializedVersion = new JSONObject();
-        serializedVersion.put("original", original);
-        serializedVersion.put("accessToken", accessToken);
-        serializedVersion.put("this", this);
-        return serializedVersion.toString().getBytes("UTF-8");
+    /**
+     * Saves the Capture record to a well-known private file on disk. The record is written on a background
+     * thread shortly after the call, and saves made in quick succession are written once. Small changes
+     * since the last save are appended as a delta instead of rewriting the whole record.
+     * @param applicationContext the context to use to write to disk
+     */
+    public void saveToDisk(Context applicationContext) {
+        CaptureRecordStore.getInstance(applicationContext).save(this);
     }
 
     /**
-     * Deletes the record saved to disk
+     * Deletes the record saved to disk, and the writes CaptureWriteQueue has queued for it
      * @param applicationContext the context with which to delete the saved record
      */
     public static void deleteFromDisk(Context applicationContext) {
-        applicationContext.deleteFile(JR_CAPTURE_SIGNED_IN_USER_FILENAME);
+        CaptureRecordStore.getInstance(applicationContext).delete();
+        CaptureWriteQueue.getInstance(applicationContext).clear();
     }
 
     private String getRefreshSignature(String date) {
@@ -207,6 +226,19 @@ public class CaptureRecord extends JSONObject {
         return Base64.encodeToString(hash, Base64.NO_WRAP);
     }
 
+    /**
+     * A synchronize callback which is also told which changes failed
+     */
+    public interface SynchronizeCallback extends CaptureApiRequestCallback {
+        /**
+         * Called before onFailure when any of the changes weren't applied. Changes which depend on a failed
+         * change, because their attribute paths overlap, aren't sent and are included.
+         *
+         * @param failures the error for each change which wasn't applied, by attribute path
+         */
+        void onChangesFailed(Map<String, CaptureApiError> failures);
+    }
+
     /**
      * Synchronizes the Capture record with the Capture service
      * Note that this sends any local changes to the service, but does not retrieve updates from the service.
@@ -214,51 +246,76 @@ public class CaptureRecord extends JSONObject {
      * @throws InvalidApidChangeException
      */
     public void synchronize(final CaptureApiRequestCallback callback) throws InvalidApidChangeException {
+        synchronize(callback, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Synchronizes the Capture record with the Capture service, within a single overall timeout which bounds
+     * all of the requests the synchronization makes. If it runs out the callback receives a CaptureApiError
+     * with the code CaptureApiError.REQUEST_TIMEOUT, and the remaining changes are not sent.
+     * @param callback your callback handler
+     * @param timeout the timeout for the whole synchronization, or 0 for none
+     * @param unit the unit of timeout
+     * @throws InvalidApidChangeException
+     */
+    public void synchronize(final CaptureApiRequestCallback callback, long timeout, TimeUnit unit)
+            throws InvalidApidChangeException {
         Set<ApidChange> changeSet = getApidChangeSet();
-        List<ApidChange> changeList = new ArrayList<ApidChange>();
-        changeList.addAll(changeSet);
 
         if (accessToken == null) throwDebugException(new IllegalStateException());
-        fireNextChange(changeList, callback);
+        sendChanges(changeSet, callback, null, deadlineFor(timeout, unit));
     }
 
     public void synchronize(final CaptureApiRequestCallback callback, JSONObject originalUserInfo) throws InvalidApidChangeException {
         Set<ApidChange> changeSet = getApidChangeSet(originalUserInfo);
-        List<ApidChange> changeList = new ArrayList<ApidChange>();
-        changeList.addAll(changeSet);
 
         if (accessToken == null) throwDebugException(new IllegalStateException());
-        fireNextChange(changeList, callback);
+        sendChanges(changeSet, callback, null, 0);
     }
 
 
-    private void fireNextChange(final List<ApidChange> changeList, final CaptureApiRequestCallback callback) {
-        if (changeList.size() == 0) {
-            if (callback != null) callback.onSuccess();
-            return;
+    /**
+     * Like synchronize, but returns the result as a future. The future fails with a
+     * Capture.CaptureApiException, or an InvalidApidChangeException if the local changes can't be
+     * effected on Capture. Cancelling it stops the changes in flight and skips the rest; changes which have
+     * already been sent are not rolled back.
+     */
+    public ApiFuture<Void> synchronizeFuture() {
+        return synchronizeFuture(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like synchronize(CaptureApiRequestCallback, long, TimeUnit), but returns the result as a future, see
+     * synchronizeFuture()
+     */
+    public ApiFuture<Void> synchronizeFuture(long timeout, TimeUnit unit) {
+        ApiFuture<Void> future = new ApiFuture<Void>();
+        Set<ApidChange> changeSet;
+        try {
+            changeSet = getApidChangeSet();
+        } catch (InvalidApidChangeException e) {
+            future.fail(e);
+            return future;
         }
 
-        final ApidChange change = changeList.get(0);
-        Set<Pair<String, String>> params = new HashSet<Pair<String, String>>(change.getBodyParams());
-        params.add(new Pair<String, String>("access_token", accessToken));
-
-        FetchJsonCallback jsonCallback = new FetchJsonCallback() {
-            public void run(JSONObject content) {
-                if (content == null) {
-                    if (callback != null) callback.onFailure(CaptureApiError.INVALID_API_RESPONSE);
-                } else if (content.opt("stat").equals("ok")) {
-                    LogUtils.logd("Capture", change.toString());
-                    LogUtils.logd("Capture", unsafeJsonObjectToString(content, 2));
-                    fireNextChange(changeList.subList(1, changeList.size()), callback);
-                } else {
-                    if (callback != null) callback.onFailure(new CaptureApiError(content, null, null));
-                }
-            }
-        };
+        if (accessToken == null) throwDebugException(new IllegalStateException());
+        sendChanges(changeSet, Capture.futureCallback(future), future, deadlineFor(timeout, unit));
+        return future;
+    }
 
-        CaptureApiConnection connection = new CaptureApiConnection(change.getUrlFor());
-        connection.addAllToParams(params);
-        connection.fetchResponseAsJson(jsonCallback);
+    private static long deadlineFor(long timeout, TimeUnit unit) {
+        return timeout > 0 ? System.currentTimeMillis() + unit.toMillis(timeout) : 0;
+    }
+
+    /**
+     * Sends the changes, see ApidChangeExecutor
+     *
+     * @param future the future for the synchronization, whose cancellation stops it, or null
+     * @param deadline the deadline shared by all of the changes' requests, or 0
+     */
+    private void sendChanges(Set<ApidChange> changes, CaptureApiRequestCallback callback,
+                             ApiFuture<?> future, long deadline) {
+        new ApidChangeExecutor(accessToken, callback, future, deadline).execute(changes);
     }
 
     private static Set<ApidChange> collapseApidChanges(Set<ApidChange> changeSet) {
@@ -328,8 +385,351 @@ public class CaptureRecord extends JSONObject {
         return new ApidUpdate(newVal, parent);
     }
 
-    private Set<ApidChange> getApidChangeSet() throws InvalidApidChangeException {
-        return collapseApidChanges(CaptureJsonUtils.compileChangeSet(original, this));
+    /*package*/ Set<ApidChange> getApidChangeSet() throws InvalidApidChangeException {
+        return getApidChangeSetFrom(getOriginalNode());
+    }
+
+    /**
+     * @return the changes since the state last queued with CaptureWriteQueue, or since the original if no
+     * queued state is pending, so that changes already queued aren't queued again
+     */
+    /*package*/ Set<ApidChange> getQueuedApidChangeSet() throws InvalidApidChangeException {
+        if (queuedBaseline == null) return getApidChangeSet();
+        if (queuedBaselineNode == null) {
+            queuedBaselineNode = CaptureJsonUtils.nodeOf(queuedBaseline, unwrittenNodes, true);
+        }
+        return getApidChangeSetFrom(queuedBaselineNode);
+    }
+
+    private Set<ApidChange> getApidChangeSetFrom(JsonNode base) throws InvalidApidChangeException {
+        if (dirtyPaths != null) {
+            return collapseApidChanges(CaptureJsonUtils.compileChangeSet(base, this, dirtyPaths,
+                    unwrittenNodes));
+        }
+        return collapseApidChanges(CaptureJsonUtils.compileChangeSet(base, getCurrentNode()));
+    }
+
+    /**
+     * @return a node of the current state of this record
+     */
+    /*package*/ JsonNode getCurrentNode() throws InvalidApidChangeException {
+        return CaptureJsonUtils.nodeOf(this, unwrittenNodes, false);
+    }
+
+    /**
+     * Records the current state as queued for synchronization, later queued changes are diffed against it
+     *
+     * @return a copy of the current state, to pass to onQueuedSyncFinished
+     */
+    /*package*/ JSONObject queueBaseline() {
+        queuedBaseline = (JSONObject) copyOwned(this);
+        queuedBaselineNode = null;
+        return queuedBaseline;
+    }
+
+    /**
+     * @return a deep copy of val, except that the containers of a sharing record which it doesn't own are
+     * shared with the copy, since they are never written
+     */
+    private Object copyOwned(Object val) {
+        if (ownedContainers == null) return copyJsonVal(val);
+        if (!ownedContainers.contains(val)) return val;
+
+        if (val instanceof JSONObject) {
+            JSONObject source = (JSONObject) val;
+            JSONObject copy = new JSONObject();
+            Iterator<String> keys = source.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JsonUtils.jsonObjectUnsafePut(copy, key, copyOwned(source.opt(key)));
+            }
+            return copy;
+        } else {
+            JSONArray source = (JSONArray) val;
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < source.length(); i++) copy.put(copyOwned(source.opt(i)));
+            return copy;
+        }
+    }
+
+    /**
+     * Advances the original to baseline once all of the changes queued with it have finished, less the
+     * changes Capture didn't apply, so that the next synchronization sends just those again
+     *
+     * @param rejected the changes queued with baseline which Capture didn't apply
+     */
+    /*package*/ void onQueuedSyncFinished(JSONObject baseline, Collection<ApidChange> rejected) {
+        queuedRejections.addAll(rejected);
+        JSONObject applied = baseline;
+        if (!queuedRejections.isEmpty()) {
+            applied = (JSONObject) copyJsonVal(baseline);
+            for (ApidChange change : queuedRejections) revertChange(applied, original, change);
+        }
+
+        boolean last = queuedBaseline == baseline;
+        originalNode = last && applied == baseline ? queuedBaselineNode : null;
+        original = applied;
+        if (last) {
+            queuedBaseline = null;
+            queuedBaselineNode = null;
+            queuedRejections.clear();
+            if (unwrittenNodes != null) {
+                // rebuilt with the nodes of the new original by getOriginalNode
+                unwrittenNodes = new IdentityHashMap<Object, JsonNode>();
+                originalNode = null;
+            }
+        }
+    }
+
+    /**
+     * Sets the attribute change wrote in target back to its value in source, removing it if source has none.
+     * An update is reverted only for the attributes it sets.
+     */
+    private static void revertChange(JSONObject target, JSONObject source, ApidChange change) {
+        if (!(change instanceof ApidUpdate) || !(change.newVal instanceof JSONObject)) {
+            revertAttribute(target, source, change.attrPath);
+            return;
+        }
+
+        String prefix = change.attrPath.equals("/") ? "/" : change.attrPath + "/";
+        Iterator<String> keys = ((JSONObject) change.newVal).keys();
+        while (keys.hasNext()) revertAttribute(target, source, prefix + keys.next());
+    }
+
+    private static void revertAttribute(JSONObject target, JSONObject source, String attrPath) {
+        List<String> segments = new ArrayList<String>();
+        for (String segment : attrPath.split("/")) if (segment.length() != 0) segments.add(segment);
+        if (segments.isEmpty()) return;
+
+        JSONObject targetParent = target;
+        JSONObject sourceParent = source;
+        for (String segment : segments.subList(0, segments.size() - 1)) {
+            targetParent = objectForSegment(targetParent, segment);
+            sourceParent = objectForSegment(sourceParent, segment);
+            // an attribute whose parent is gone has nothing to revert
+            if (targetParent == null) return;
+        }
+
+        String last = segments.get(segments.size() - 1);
+        int idSeparator = last.indexOf('#');
+        if (idSeparator == -1) {
+            Object sourceVal = sourceParent == null ? null : sourceParent.opt(last);
+            if (sourceVal == null) {
+                targetParent.remove(last);
+            } else {
+                JsonUtils.jsonObjectUnsafePut(targetParent, last, copyJsonVal(sourceVal));
+            }
+            return;
+        }
+
+        String pluralName = last.substring(0, idSeparator);
+        JSONObject targetElement = objectForSegment(targetParent, last);
+        JSONObject sourceElement = objectForSegment(sourceParent, last);
+        if (targetElement == null && sourceElement == null) return;
+
+        // rebuilt rather than edited, JSONArray.remove needs API 19
+        JSONArray targetPlural = targetParent.optJSONArray(pluralName);
+        JSONArray reverted = new JSONArray();
+        for (int i = 0; targetPlural != null && i < targetPlural.length(); i++) {
+            Object element = targetPlural.opt(i);
+            if (element != targetElement) {
+                reverted.put(element);
+            } else if (sourceElement != null) {
+                reverted.put(copyJsonVal(sourceElement));
+            }
+        }
+        if (targetElement == null) reverted.put(copyJsonVal(sourceElement));
+        JsonUtils.jsonObjectUnsafePut(targetParent, pluralName, reverted);
+    }
+
+    /**
+     * @return the object of parent named by an attribute path segment, like primaryAddress or photos#2, or
+     * null if it has none
+     */
+    private static JSONObject objectForSegment(JSONObject parent, String segment) {
+        if (parent == null) return null;
+        int idSeparator = segment.indexOf('#');
+        if (idSeparator == -1) return parent.optJSONObject(segment);
+
+        JSONArray plural = parent.optJSONArray(segment.substring(0, idSeparator));
+        long id = Long.parseLong(segment.substring(idSeparator + 1));
+        for (int i = 0; plural != null && i < plural.length(); i++) {
+            JSONObject element = plural.optJSONObject(i);
+            if (element != null && element.optLong("id", -1) == id) return element;
+        }
+        return null;
+    }
+
+    /**
+     * Enables or disables dirty path tracking. While enabled this record remembers the attribute paths
+     * written through put, setAttribute, and markDirty, and synchronize diffs only those subtrees against
+     * the original record instead of the whole record.
+     *
+     * Tracking can't see writes made directly to nested JSONObjects or JSONArrays taken from this record,
+     * such changes must be reported with markDirty or they will not be synchronized. Enable tracking before
+     * making changes; changes made beforehand are not recorded. Tracking state is not saved to disk, a
+     * record loaded from disk diffs in full until tracking is enabled again.
+     *
+     * @param enabled true to track dirty paths, false to diff the whole record on synchronize
+     */
+    public void setDirtyPathTracking(boolean enabled) {
+        if (!enabled) {
+            dirtyPaths = null;
+        } else if (dirtyPaths == null) {
+            dirtyPaths = new HashSet<String>();
+        }
+    }
+
+    /**
+     * @return true if dirty path tracking is enabled
+     */
+    public boolean isDirtyPathTracking() {
+        return dirtyPaths != null;
+    }
+
+    /**
+     * Records the attribute at attrPath as changed, for changes made directly to nested JSON values while
+     * dirty path tracking is enabled. Has no effect when tracking is disabled.
+     *
+     * @param attrPath the attribute path of the changed value, like /primaryAddress/city or
+     *                 /photos#2/value
+     */
+    public void markDirty(String attrPath) {
+        if (dirtyPaths != null) dirtyPaths.add(attrPath);
+    }
+
+    /**
+     * Sets the value of the attribute at attrPath, and records it as changed when dirty path tracking is
+     * enabled.
+     *
+     * @param attrPath the attribute path, like /primaryAddress/city or /photos#2/value
+     * @param value the new value of the attribute
+     * @throws JSONException if attrPath doesn't name an attribute in an existing object or plural element
+     */
+    public void setAttribute(String attrPath, Object value) throws JSONException {
+        String[] segments = attrPath.split("/");
+        JSONObject parent = this;
+        String key = null;
+        for (String segment : segments) {
+            if (segment.length() == 0) continue;
+            if (key != null) parent = childForSegment(parent, key);
+            key = segment;
+        }
+        if (key == null || key.contains("#")) throw new JSONException("Not an attribute path: " + attrPath);
+
+        if (parent == this) {
+            put(key, value);
+        } else {
+            parent.put(key, value);
+            markDirty(attrPath);
+        }
+    }
+
+    /**
+     * Returns the object at attrPath for editing, and records it as changed when dirty path tracking is
+     * enabled. For a record with structural sharing the object and its ancestors are first copied out of
+     * the storage shared with the original record, so the returned object may be written to directly, but
+     * objects nested within it may not.
+     *
+     * @param attrPath the attribute path of an object, like /primaryAddress or /photos#2
+     * @return the object at attrPath
+     * @throws JSONException if attrPath doesn't name an existing object or plural element
+     */
+    public JSONObject editJSONObject(String attrPath) throws JSONException {
+        JSONObject object = this;
+        for (String segment : attrPath.split("/")) {
+            if (segment.length() == 0) continue;
+            object = childForSegment(object, segment);
+        }
+        markDirty(attrPath);
+        return object;
+    }
+
+    private JSONObject childForSegment(JSONObject parent, String segment) throws JSONException {
+        int idSeparator = segment.indexOf('#');
+        if (idSeparator == -1) {
+            JSONObject child = parent.getJSONObject(segment);
+            if (ownedContainers == null || ownedContainers.contains(child)) return child;
+            child = (JSONObject) JsonUtils.shallowCopyJsonVal(child);
+            ownedContainers.add(child);
+            superPut(parent, segment, child);
+            return child;
+        }
+
+        String pluralName = segment.substring(0, idSeparator);
+        JSONArray plural = parent.getJSONArray(pluralName);
+        if (ownedContainers != null && !ownedContainers.contains(plural)) {
+            plural = (JSONArray) JsonUtils.shallowCopyJsonVal(plural);
+            ownedContainers.add(plural);
+            superPut(parent, pluralName, plural);
+        }
+        long id = Long.parseLong(segment.substring(idSeparator + 1));
+        for (int i = 0; i < plural.length(); i++) {
+            JSONObject element = plural.optJSONObject(i);
+            if (element == null || element.optLong("id", -1) != id) continue;
+            if (ownedContainers != null && !ownedContainers.contains(element)) {
+                element = (JSONObject) JsonUtils.shallowCopyJsonVal(element);
+                ownedContainers.add(element);
+                plural.put(i, element);
+            }
+            return element;
+        }
+        throw new JSONException("No element with id " + id + " in " + segment);
+    }
+
+    // replaces a shared container with its copy without marking the path dirty
+    private void superPut(JSONObject parent, String key, Object value) throws JSONException {
+        if (parent == this) {
+            super.put(key, value);
+        } else {
+            parent.put(key, value);
+        }
+    }
+
+    @Override
+    public JSONObject put(String name, boolean value) throws JSONException {
+        markDirty("/" + name);
+        return super.put(name, value);
+    }
+
+    @Override
+    public JSONObject put(String name, double value) throws JSONException {
+        markDirty("/" + name);
+        return super.put(name, value);
+    }
+
+    @Override
+    public JSONObject put(String name, int value) throws JSONException {
+        markDirty("/" + name);
+        return super.put(name, value);
+    }
+
+    @Override
+    public JSONObject put(String name, long value) throws JSONException {
+        markDirty("/" + name);
+        return super.put(name, value);
+    }
+
+    @Override
+    public JSONObject put(String name, Object value) throws JSONException {
+        markDirty("/" + name);
+        return super.put(name, value);
+    }
+
+    @Override
+    public Object remove(String name) {
+        markDirty("/" + name);
+        return super.remove(name);
+    }
+
+    /*package*/ JsonNode getOriginalNode() throws InvalidApidChangeException {
+        if (originalNode == null) {
+            if (ownedContainers != null && unwrittenNodes == null) {
+                unwrittenNodes = new IdentityHashMap<Object, JsonNode>();
+            }
+            originalNode = CaptureJsonUtils.nodeOf(original, unwrittenNodes, true);
+        }
+        return originalNode;
     }
 
     private Set<ApidChange> getApidChangeSet(JSONObject originalUserInfo)
@@ -364,12 +764,33 @@ public class CaptureRecord extends JSONObject {
      * @param callback your handler, invoked upon completion
      */
     public void refreshAccessToken(final CaptureApiRequestCallback callback) {
+        startRefreshAccessToken(callback);
+    }
+
+    /**
+     * Like refreshAccessToken, but returns the result as a future. The future fails with a
+     * Capture.CaptureApiException, and cancelling it stops the request.
+     */
+    public ApiFuture<Void> refreshAccessTokenFuture() {
+        ApiFuture<Void> future = new ApiFuture<Void>();
+        final CaptureApiConnection c = startRefreshAccessToken(Capture.futureCallback(future));
+        if (c != null) {
+            future.onCancel(new Runnable() {
+                public void run() {
+                    c.stopConnection();
+                }
+            });
+        }
+        return future;
+    }
+
+    private CaptureApiConnection startRefreshAccessToken(final CaptureApiRequestCallback callback) {
         String date = getUTCdatetimeAsString();
         String signature = getRefreshSignature(date);
 
         if (date == null || accessToken == null || signature == null) {
             callback.onFailure(new CaptureApiError("Unable to generate signature"));
-            return;
+            return null;
         }
 
         CaptureApiConnection c = new CaptureApiConnection("/oauth/refresh_access_token");
@@ -403,6 +824,7 @@ public class CaptureRecord extends JSONObject {
                 }
             }
         });
+        return c;
     }
 
     /**
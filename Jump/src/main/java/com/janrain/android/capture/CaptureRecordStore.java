@@ -0,0 +1,486 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+
+package com.janrain.android.capture;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import com.janrain.android.utils.IoUtils;
+import com.janrain.android.utils.LogUtils;
+import com.janrain.android.utils.ThreadUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.janrain.android.capture.Capture.InvalidApidChangeException;
+import static com.janrain.android.utils.LogUtils.throwDebugException;
+
+/**
+ * Persists the signed-in CaptureRecord. The record is stored as a base snapshot plus an append-only journal
+ * of deltas against it, so saving a small edit appends a small delta instead of rewriting the whole record.
+ *
+ * Saves are debounced, a burst of saves snapshots the record once, and the snapshot is written off the main
+ * thread. The base snapshot is replaced atomically, written to a temporary file and renamed over the old
+ * one, and the journal is compacted into a new base once it outgrows the base. Each delta names the
+ * generation of the base it applies to, so deltas left over from a base that has since been replaced are
+ * ignored. A delta is applied whole or not at all, and the journal is truncated at the first torn or bad
+ * delta, so that later deltas aren't appended to a partial line.
+ *
+ * The base snapshot keeps the format and filename of the records saved by earlier versions of the library.
+ */
+/*package*/ class CaptureRecordStore {
+    private static final String BASE_FILENAME = "jr_capture_signed_in_user";
+    private static final String JOURNAL_FILENAME = "jr_capture_signed_in_user_journal";
+    private static final long SAVE_DEBOUNCE_MILLIS = 250;
+    private static final long MIN_COMPACTION_BYTES = 16 * 1024;
+
+    private static CaptureRecordStore sInstance;
+
+    private final File mBase;
+    private final File mJournal;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // main thread only
+    private CaptureRecord mRecordToSave;
+
+    private final Object mLock = new Object();
+    // guarded by mLock
+    private Snapshot mPendingSnapshot;
+    // guarded by mLock, the state on disk
+    private CaptureRecord mSavedRecord;
+    private JsonNode mSavedNode;
+    // the original node on disk, deltas don't record a change of the original
+    private JsonNode mSavedOriginal;
+    private String mSavedAccessToken;
+    private long mGeneration;
+    private long mBaseBytes;
+    private long mJournalBytes;
+    // set by delete until the next save, so that a snapshot already under way isn't written
+    private boolean mDeleted;
+
+    private final Runnable mSnapshotRunnable = new Runnable() {
+        public void run() {
+            CaptureRecord record = mRecordToSave;
+            mRecordToSave = null;
+            if (record == null) return;
+            synchronized (mLock) {
+                if (mDeleted) return;
+                mPendingSnapshot = new Snapshot(record);
+            }
+            ThreadUtils.executeInPool(mWriteRunnable, ThreadUtils.Priority.BACKGROUND_IO);
+        }
+    };
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        public void run() {
+            writePendingSnapshot();
+        }
+    };
+
+    /**
+     * An immutable copy of a record, taken on the thread which owns the record
+     */
+    private static class Snapshot {
+        final CaptureRecord record;
+        // null if the record holds values a JsonNode can't represent, like Floats
+        final JsonNode original;
+        final JsonNode current;
+        // the record serialized by org.json instead, set only when original and current are null
+        final String originalJson;
+        final String currentJson;
+        final String accessToken;
+
+        Snapshot(CaptureRecord record) {
+            this.record = record;
+            JsonNode original = null;
+            JsonNode current = null;
+            String originalJson = null;
+            String currentJson = null;
+            try {
+                original = record.getOriginalNode();
+                current = record.getCurrentNode();
+            } catch (InvalidApidChangeException e) {
+                LogUtils.loge("Saving the Capture record without deltas: " + e.getMessage());
+                original = current = null;
+                originalJson = record.originalToString();
+                currentJson = record.toString();
+            }
+            this.original = original;
+            this.current = current;
+            this.originalJson = originalJson;
+            this.currentJson = currentJson;
+            accessToken = record.accessToken;
+        }
+    }
+
+    private CaptureRecordStore(Context context) {
+        mBase = new File(context.getFilesDir(), BASE_FILENAME);
+        mJournal = new File(context.getFilesDir(), JOURNAL_FILENAME);
+    }
+
+    /*package*/ static synchronized CaptureRecordStore getInstance(Context context) {
+        if (sInstance == null) sInstance = new CaptureRecordStore(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * Saves record soon, on a background thread. Saves made within a short while of each other are
+     * coalesced into one. If the calling thread has no Looper the record is saved synchronously instead.
+     */
+    /*package*/ void save(CaptureRecord record) {
+        if (Looper.myLooper() == null) {
+            synchronized (mLock) {
+                mDeleted = false;
+                mPendingSnapshot = new Snapshot(record);
+            }
+            writePendingSnapshot();
+            return;
+        }
+
+        synchronized (mLock) {
+            mDeleted = false;
+        }
+        mRecordToSave = record;
+        mHandler.removeCallbacks(mSnapshotRunnable);
+        mHandler.postDelayed(mSnapshotRunnable, SAVE_DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Deletes the saved record, and drops any save not yet written
+     */
+    /*package*/ void delete() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mRecordToSave = null;
+            mHandler.removeCallbacks(mSnapshotRunnable);
+        }
+        synchronized (mLock) {
+            // off the main thread a due snapshot may still run, the flag keeps it from being written
+            mDeleted = true;
+            mPendingSnapshot = null;
+            mBase.delete();
+            mJournal.delete();
+            resetSavedState();
+        }
+    }
+
+    /**
+     * @return the saved record, with its journaled deltas applied, or null if there is none
+     */
+    /*package*/ CaptureRecord load() {
+        synchronized (mLock) {
+            resetSavedState();
+            if (!mBase.exists()) return null;
+
+            String fileContents = null;
+            try {
+                fileContents = CaptureStringUtils.readAndClose(new FileInputStream(mBase));
+                if (fileContents == null) return null;
+                JSONObject serializedVersion = new JSONObject(fileContents);
+                long generation = serializedVersion.optLong("generation");
+                JSONObject current = serializedVersion.getJSONObject("this");
+                String accessToken = serializedVersion.getString("accessToken");
+                accessToken = replayJournal(generation, current, accessToken);
+                serializedVersion.put("accessToken", accessToken);
+
+                CaptureRecord record = CaptureRecord.inflateCaptureRecord(serializedVersion);
+                mSavedRecord = record;
+                mSavedNode = JsonNode.of(current);
+                try {
+                    mSavedOriginal = record.getOriginalNode();
+                } catch (InvalidApidChangeException ignore) {
+                    // the next save writes a new base
+                }
+                mSavedAccessToken = accessToken;
+                mGeneration = generation;
+                mBaseBytes = mBase.length();
+                return record;
+            } catch (IOException e) {
+                LogUtils.loge("Failed to read the saved Capture record", e);
+            } catch (JSONException e) {
+                throwDebugException(new RuntimeException("Bad CaptureRecord file contents:\n" + fileContents,
+                        e));
+            }
+            return null;
+        }
+    }
+
+    private void resetSavedState() {
+        mSavedRecord = null;
+        mSavedNode = null;
+        mSavedOriginal = null;
+        mSavedAccessToken = null;
+        mBaseBytes = 0;
+        mJournalBytes = 0;
+    }
+
+    /**
+     * Applies the deltas journaled against the given base generation to current, stopping at the first torn
+     * or bad delta and truncating the journal there. Sets mJournalBytes to the journal's resulting length.
+     * @return the access token as of the last delta
+     */
+    private String replayJournal(long generation, JSONObject current, String accessToken) {
+        if (!mJournal.exists()) return accessToken;
+
+        byte[] journal;
+        try {
+            journal = IoUtils.readAndClose(new FileInputStream(mJournal), true);
+        } catch (IOException e) {
+            LogUtils.loge("Failed to read the Capture record journal", e);
+            // the next save writes a new base instead of appending to the unreadable journal
+            mJournalBytes = Long.MAX_VALUE;
+            return accessToken;
+        }
+        int lineStart = 0;
+        while (lineStart < journal.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < journal.length && journal[lineEnd] != '\n') lineEnd++;
+            // a line without its newline was torn by a crash mid-append
+            if (lineEnd == journal.length) break;
+
+            try {
+                String line = new String(journal, lineStart, lineEnd - lineStart, "UTF-8");
+                JSONObject delta = new JSONObject(line);
+                if (delta.getLong("base") == generation) {
+                    List<ResolvedOp> ops = resolveOps(current, delta.getJSONArray("ops"));
+                    if (delta.has("accessToken")) accessToken = delta.getString("accessToken");
+                    for (ResolvedOp op : ops) op.apply();
+                }
+            } catch (JSONException e) {
+                LogUtils.loge("Bad Capture record journal entry, dropping it and those after it", e);
+                break;
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("Unexpected", e);
+            }
+            lineStart = lineEnd + 1;
+        }
+
+        mJournalBytes = lineStart;
+        if (lineStart < journal.length) {
+            try {
+                RandomAccessFile file = new RandomAccessFile(mJournal, "rw");
+                try {
+                    file.setLength(lineStart);
+                    file.getFD().sync();
+                } finally {
+                    file.close();
+                }
+            } catch (IOException e) {
+                LogUtils.loge("Failed to truncate the Capture record journal", e);
+                mJournalBytes = Long.MAX_VALUE;
+            }
+        }
+        return accessToken;
+    }
+
+    /**
+     * An op of a delta, with its parent resolved, ready to apply
+     */
+    private static class ResolvedOp {
+        final JSONObject parent;
+        final String key;
+        // null to remove the key
+        final Object value;
+
+        ResolvedOp(JSONObject parent, String key, Object value) {
+            this.parent = parent;
+            this.key = key;
+            this.value = value;
+        }
+
+        void apply() throws JSONException {
+            if (value == null) {
+                parent.remove(key);
+            } else {
+                parent.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Parses and resolves all of a delta's ops before any is applied, so a bad delta leaves current
+     * unchanged. The ops of a delta come from one diff and never touch each other's paths, so resolving
+     * them all against the state before the delta is the same as resolving each after the previous ones.
+     */
+    private static List<ResolvedOp> resolveOps(JSONObject current, JSONArray ops) throws JSONException {
+        List<ResolvedOp> resolved = new ArrayList<ResolvedOp>();
+        for (int i = 0; i < ops.length(); i++) {
+            JSONObject op = ops.getJSONObject(i);
+            JSONArray path = op.getJSONArray("path");
+            if (path.length() == 0) throw new JSONException("empty path");
+            JSONObject parent = current;
+            for (int j = 0; j < path.length() - 1; j++) parent = parent.getJSONObject(path.getString(j));
+            String key = path.getString(path.length() - 1);
+            resolved.add(new ResolvedOp(parent, key, op.optBoolean("remove") ? null : op.get("value")));
+        }
+        return resolved;
+    }
+
+    private void writePendingSnapshot() {
+        synchronized (mLock) {
+            Snapshot snapshot = mPendingSnapshot;
+            mPendingSnapshot = null;
+            if (snapshot == null || mDeleted) return;
+
+            try {
+                if (snapshot.record != mSavedRecord || mSavedNode == null || snapshot.current == null ||
+                        snapshot.original != mSavedOriginal ||
+                        mJournalBytes > Math.max(mBaseBytes, MIN_COMPACTION_BYTES)) {
+                    writeBase(snapshot);
+                } else {
+                    appendDelta(snapshot);
+                }
+            } catch (IOException e) {
+                LogUtils.loge("Failed to save the Capture record", e);
+                // a failed append may have left a partial line, write a new base next time instead
+                mJournalBytes = Long.MAX_VALUE;
+            } catch (JSONException e) {
+                throwDebugException(new RuntimeException("Unexpected", e));
+            }
+        }
+    }
+
+    /**
+     * Writes a new base snapshot to a temporary file, renames it over the old base, then drops the journal
+     */
+    private void writeBase(Snapshot snapshot) throws IOException {
+        long generation = mGeneration + 1;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"generation\":").append(generation);
+        sb.append(",\"accessToken\":").append(JSONObject.quote(snapshot.accessToken));
+        sb.append(",\"original\":");
+        if (snapshot.original != null) {
+            snapshot.original.writeTo(sb);
+        } else {
+            sb.append(snapshot.originalJson);
+        }
+        sb.append(",\"this\":");
+        if (snapshot.current != null) {
+            snapshot.current.writeTo(sb);
+        } else {
+            sb.append(snapshot.currentJson);
+        }
+        sb.append('}');
+        byte[] bytes = sb.toString().getBytes("UTF-8");
+
+        File temp = new File(mBase.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            fos.write(bytes);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!temp.renameTo(mBase)) throw new IOException("rename failed: " + temp);
+        mJournal.delete();
+
+        mSavedRecord = snapshot.record;
+        mSavedNode = snapshot.current;
+        mSavedOriginal = snapshot.original;
+        mSavedAccessToken = snapshot.accessToken;
+        mGeneration = generation;
+        mBaseBytes = bytes.length;
+        mJournalBytes = 0;
+    }
+
+    /**
+     * Appends the difference between the saved state and snapshot to the journal, as one line
+     */
+    private void appendDelta(Snapshot snapshot) throws IOException, JSONException {
+        JSONArray ops = new JSONArray();
+        diff(mSavedNode, snapshot.current, new ArrayList<String>(), ops);
+        boolean tokenChanged = snapshot.accessToken == null ? mSavedAccessToken != null
+                : !snapshot.accessToken.equals(mSavedAccessToken);
+        if (ops.length() == 0 && !tokenChanged) return;
+
+        JSONObject delta = new JSONObject();
+        delta.put("base", mGeneration);
+        if (tokenChanged) delta.put("accessToken", snapshot.accessToken);
+        delta.put("ops", ops);
+        byte[] bytes = (delta.toString() + "\n").getBytes("UTF-8");
+
+        FileOutputStream fos = new FileOutputStream(mJournal, true);
+        try {
+            fos.write(bytes);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        mSavedNode = snapshot.current;
+        mSavedAccessToken = snapshot.accessToken;
+        mJournalBytes += bytes.length;
+    }
+
+    /**
+     * Compiles the operations which turn saved into current, setting whole values wherever they aren't both
+     * objects, and recursing into the fields of objects
+     */
+    private static void diff(JsonNode saved, JsonNode current, List<String> path, JSONArray ops)
+            throws JSONException {
+        if (saved.equals(current)) return;
+        if (saved.kind != JsonNode.OBJECT || current.kind != JsonNode.OBJECT) {
+            ops.put(new JSONObject().put("path", new JSONArray(path)).put("value", current.toJson()));
+            return;
+        }
+
+        String[] savedKeys = saved.keys();
+        String[] currentKeys = current.keys();
+        int i = 0, j = 0;
+        while (i < savedKeys.length || j < currentKeys.length) {
+            int keyOrder = i == savedKeys.length ? 1 : j == currentKeys.length ? -1
+                    : savedKeys[i].compareTo(currentKeys[j]);
+            if (keyOrder < 0) {
+                path.add(savedKeys[i++]);
+                ops.put(new JSONObject().put("path", new JSONArray(path)).put("remove", true));
+            } else if (keyOrder > 0) {
+                path.add(currentKeys[j]);
+                ops.put(new JSONObject().put("path", new JSONArray(path)).put("value",
+                        current.get(j++).toJson()));
+            } else {
+                path.add(savedKeys[i]);
+                diff(saved.get(i++), current.get(j++), path, ops);
+            }
+            path.remove(path.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,817 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.capture;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Pair;
+import com.janrain.android.Jump;
+import com.janrain.android.utils.ApiConnection;
+import com.janrain.android.utils.JsonUtils;
+import com.janrain.android.utils.LogUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.janrain.android.capture.Capture.CaptureApiRequestCallback;
+import static com.janrain.android.capture.Capture.InvalidApidChangeException;
+import static com.janrain.android.utils.LogUtils.throwDebugException;
+
+/**
+ * A durable queue of pending Capture writes: profile updates and the changes of CaptureRecord
+ * synchronizations. Writes are journaled to disk before they are sent, one at a time and in order, and a
+ * write which fails for want of a network stays queued and is replayed when connectivity returns, including
+ * after the app restarts. A write which Capture rejects is dropped and reported to its callback. A write
+ * whose outcome is unknown, because it timed out or its response couldn't be read, is sent again only if
+ * it's idempotent, at most MAX_ATTEMPTS times, else it's dropped and reported as failed since Capture may
+ * have applied it.
+ *
+ * While a write waits, later writes which supersede it are coalesced with it: updates of the same attribute
+ * are merged, the later update's values winning, unless either adds plural elements, a replace or delete
+ * drops the queued writes under its attribute path it overwrites, and a profile form submission replaces an
+ * earlier queued submission of the same form.
+ *
+ * A record's queued changes are diffed against the state last queued for it. Once all of a synchronization's
+ * changes have finished the record's original advances to the state they were taken from, less the changes
+ * Capture didn't apply, which the next synchronization sends again.
+ *
+ * Each write belongs to the user it was queued for, and is sent with that user's current access token,
+ * refreshing it if Capture reports it expired. A write whose user is no longer signed in is dropped and
+ * reported as failed, and signing out empties the queue and its journal.
+ *
+ * Callbacks are held in memory only, writes replayed after a restart have none.
+ */
+public class CaptureWriteQueue {
+    private static final String JOURNAL_FILENAME = "jr_capture_write_journal";
+    private static final int COMPACTION_THRESHOLD = 64;
+    private static final long RETRY_INTERVAL_MILLIS = 60 * 1000;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int ACCESS_TOKEN_EXPIRED = 414;
+
+    private static final String KIND_PROFILE = "profile";
+    private static final String KIND_UPDATE = "update";
+    private static final String KIND_REPLACE = "replace";
+    private static final String KIND_DELETE = "delete";
+
+    private static CaptureWriteQueue sInstance;
+
+    private final Context mContext;
+    private final File mJournal;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // guarded by this
+    private final List<Write> mPending = new ArrayList<Write>();
+    private long mNextId = 1;
+    private int mRetiredSinceCompaction;
+    private Write mInFlight;
+    private final Metrics mMetrics = new Metrics();
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * A point in time snapshot of the queue's metrics
+     */
+    public static class Metrics {
+        /**
+         * The number of writes waiting to be applied, including one in flight
+         */
+        public int queueDepth;
+
+        /**
+         * The total number of writes queued, before coalescing
+         */
+        public long enqueued;
+
+        /**
+         * The number of queued writes merged into, or dropped in favour of, a later write
+         */
+        public long coalesced;
+
+        /**
+         * The number of writes Capture applied
+         */
+        public long applied;
+
+        /**
+         * The number of writes Capture rejected, and which were dropped
+         */
+        public long rejected;
+
+        /**
+         * The number of attempts to send a write which failed for want of a network
+         */
+        public long networkFailures;
+
+        /**
+         * The mean and longest time from queueing a write to Capture applying it
+         */
+        public long meanReplayLatencyMillis;
+        public long maxReplayLatencyMillis;
+
+        private long totalReplayLatencyMillis;
+
+        private Metrics copy() {
+            Metrics copy = new Metrics();
+            copy.queueDepth = queueDepth;
+            copy.enqueued = enqueued;
+            copy.coalesced = coalesced;
+            copy.applied = applied;
+            copy.rejected = rejected;
+            copy.networkFailures = networkFailures;
+            copy.meanReplayLatencyMillis = applied == 0 ? 0 : totalReplayLatencyMillis / applied;
+            copy.maxReplayLatencyMillis = maxReplayLatencyMillis;
+            return copy;
+        }
+    }
+
+    private static class Write {
+        final long id;
+        final String url;
+        final String kind;
+        // the attribute path of an entity change, or the form of a profile update
+        final String path;
+        final long enqueuedAt;
+        // the uuid of the user the write was queued for, or null if unknown
+        final String user;
+        // the access token at the time the write was queued, sent only for writes of no known user
+        final String accessToken;
+        // the value of an update, which can be merged with a later update
+        JSONObject value;
+        // true if the write may be retried after a failure which Capture may nonetheless have applied
+        boolean idempotent;
+        // set once the user's access token has been refreshed for this write, memory only
+        boolean tokenRefreshed;
+        // the number of times the write was sent with an unknown outcome, memory only
+        int unknownOutcomes;
+        List<Pair<String, String>> params;
+        final List<CaptureApiRequestCallback> callbacks = new ArrayList<CaptureApiRequestCallback>();
+
+        Write(long id, String url, String kind, String path, long enqueuedAt, String user,
+              String accessToken) {
+            this.id = id;
+            this.url = url;
+            this.kind = kind;
+            this.path = path;
+            this.enqueuedAt = enqueuedAt;
+            this.user = user;
+            this.accessToken = accessToken;
+        }
+
+        boolean isProfile() {
+            return KIND_PROFILE.equals(kind);
+        }
+
+        /**
+         * @return true if this write and other may touch a common attribute
+         */
+        boolean overlaps(Write other) {
+            // the attributes a form touches aren't known
+            if (isProfile() || other.isProfile()) return true;
+            return ApidChange.isWithin(path, other.path) || ApidChange.isWithin(other.path, path);
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONArray paramsJson = new JSONArray();
+            for (Pair<String, String> param : params) {
+                paramsJson.put(new JSONArray().put(param.first).put(param.second));
+            }
+            return new JSONObject()
+                    .put("op", "add")
+                    .put("id", id)
+                    .put("url", url)
+                    .put("kind", kind)
+                    .put("path", path)
+                    .put("at", enqueuedAt)
+                    .put("user", user)
+                    .put("token", accessToken)
+                    .put("value", value)
+                    .put("idempotent", idempotent)
+                    .put("params", paramsJson);
+        }
+
+        static Write fromJson(JSONObject json) throws JSONException {
+            Write write = new Write(json.getLong("id"), json.getString("url"), json.getString("kind"),
+                    json.getString("path"), json.getLong("at"), json.optString("user", null),
+                    json.optString("token", null));
+            write.value = json.optJSONObject("value");
+            write.idempotent = json.optBoolean("idempotent");
+            write.params = new ArrayList<Pair<String, String>>();
+            JSONArray paramsJson = json.getJSONArray("params");
+            for (int i = 0; i < paramsJson.length(); i++) {
+                JSONArray param = paramsJson.getJSONArray(i);
+                write.params.add(new Pair<String, String>(param.getString(0), param.getString(1)));
+            }
+            return write;
+        }
+    }
+
+    private CaptureWriteQueue(Context context) {
+        mContext = context;
+        mJournal = new File(context.getFilesDir(), JOURNAL_FILENAME);
+        loadJournal();
+
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) replay();
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * @return the queue, loading any writes journaled by an earlier run of the app and starting their replay
+     */
+    public static synchronized CaptureWriteQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CaptureWriteQueue(context.getApplicationContext());
+            sInstance.replay();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queues an update of the user's profile with the edit profile form, see Capture.updateUserProfile
+     *
+     * @param callback told when Capture applies or rejects the update, may be null
+     */
+    public void updateUserProfile(CaptureRecord user, CaptureApiRequestCallback callback) {
+        updateUserProfile(user, Jump.getCaptureEditUserProfileFormName(), callback);
+    }
+
+    /**
+     * Queues an update of the user's profile with the given form, see Capture.updateUserProfile
+     *
+     * @param callback told when Capture applies or rejects the update, may be null
+     */
+    public void updateUserProfile(CaptureRecord user, String editProfileFormName,
+                                  CaptureApiRequestCallback callback) {
+        if (editProfileFormName == null) {
+            throwDebugException(new IllegalArgumentException("You must set captureEditUserProfileFormName"));
+        }
+
+        List<Pair<String, String>> params = new ArrayList<Pair<String, String>>(
+                CaptureFlowUtils.getFormFields(user, editProfileFormName, Jump.getCaptureFlow()));
+        enqueueProfileUpdate("/oauth/update_profile_native", editProfileFormName, params, userKey(user),
+                user.accessToken, callback);
+    }
+
+    /**
+     * Queues an update of the user's profile with the given form fields, see
+     * Capture.updateUserProfileWithFormFieldsProvided
+     *
+     * @param callback told when Capture applies or rejects the update, may be null
+     */
+    public void updateUserProfileWithFormFieldsProvided(Map<String, String> fieldMap,
+                                                        String oauthEndpoint,
+                                                        String captureFlowFormName,
+                                                        String accessToken,
+                                                        CaptureApiRequestCallback callback) {
+        if (captureFlowFormName == null || captureFlowFormName.length() == 0) {
+            throwDebugException(new IllegalArgumentException("Missing Capture Flow Form Name"));
+        }
+
+        List<Pair<String, String>> params = new ArrayList<Pair<String, String>>();
+        for (Map.Entry<String, String> entry : fieldMap.entrySet()) {
+            if (entry.getValue() == null) continue;
+            params.add(new Pair<String, String>(entry.getKey(), entry.getValue()));
+        }
+        // the write belongs to the signed-in user if the token is theirs
+        CaptureRecord signedInUser = Jump.getSignedInUser();
+        String user = signedInUser != null && accessToken != null
+                && accessToken.equals(signedInUser.accessToken) ? userKey(signedInUser) : null;
+        enqueueProfileUpdate(oauthEndpoint, captureFlowFormName, params, user, accessToken, callback);
+    }
+
+    /**
+     * Queues the record's local changes, see CaptureRecord.synchronize
+     *
+     * @param callback told once all of the changes have finished, failing with the first error if Capture
+     *                 didn't apply one of them, may be null
+     * @throws InvalidApidChangeException if the changes can't be effected on Capture
+     */
+    public void synchronize(CaptureRecord record, CaptureApiRequestCallback callback)
+            throws InvalidApidChangeException {
+        Set<ApidChange> changes = record.getQueuedApidChangeSet();
+        if (changes.isEmpty()) {
+            if (callback != null) callback.onSuccess();
+            return;
+        }
+
+        QueuedSync sync = new QueuedSync(record, record.queueBaseline(), changes.size(), callback);
+        synchronized (this) {
+            for (ApidChange change : changes) {
+                String kind = change instanceof ApidUpdate ? KIND_UPDATE :
+                        change instanceof ApidReplace ? KIND_REPLACE : KIND_DELETE;
+                Write write = new Write(mNextId++, change.getUrlFor(), kind, change.attrPath,
+                        System.currentTimeMillis(), userKey(record), record.accessToken);
+                if (change instanceof ApidUpdate && change.newVal instanceof JSONObject) {
+                    write.value = (JSONObject) change.newVal;
+                }
+                write.params = new ArrayList<Pair<String, String>>(change.getBodyParams());
+                write.idempotent = change.isIdempotent();
+                enqueue(write, sync.callbackFor(change));
+            }
+        }
+        scheduleDrain(0);
+    }
+
+    /**
+     * Sends the queued writes now, e.g. once the app knows the network is back
+     */
+    public void replay() {
+        scheduleDrain(0);
+    }
+
+    /**
+     * Drops every queued write, without calling their callbacks, and deletes the journal. Called when the
+     * user signs out. A write already in flight still reports its outcome to its callbacks.
+     */
+    public synchronized void clear() {
+        mPending.clear();
+        mRetiredSinceCompaction = 0;
+        if (mJournal.exists() && !mJournal.delete()) LogUtils.loge("Failed to delete Capture write journal");
+    }
+
+    /**
+     * @return a snapshot of the queue's metrics
+     */
+    public synchronized Metrics getMetrics() {
+        mMetrics.queueDepth = mPending.size();
+        return mMetrics.copy();
+    }
+
+    private void enqueueProfileUpdate(String url, String form, List<Pair<String, String>> params, String user,
+                                      String accessToken, CaptureApiRequestCallback callback) {
+        synchronized (this) {
+            Write write = new Write(mNextId++, url, KIND_PROFILE, form, System.currentTimeMillis(), user,
+                    accessToken);
+            write.params = params;
+            enqueue(write, callback);
+        }
+        scheduleDrain(0);
+    }
+
+    /**
+     * Coalesces write with the queued writes it supersedes, then journals and queues it. Only writes
+     * which no queued write in between overlaps are coalesced, so the order of overlapping writes holds.
+     * Must be called with this held.
+     */
+    private void enqueue(Write write, CaptureApiRequestCallback callback) {
+        mMetrics.enqueued++;
+        if (callback != null) write.callbacks.add(callback);
+
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            Write queued = mPending.get(i);
+            if (queued == mInFlight) break;
+            if (!queued.overlaps(write)) continue;
+
+            if (write.isProfile()) {
+                if (!queued.isProfile() || !queued.path.equals(write.path) || !queued.url.equals(write.url)) {
+                    break;
+                }
+            } else if (KIND_UPDATE.equals(write.kind)) {
+                // updates adding plural elements aren't merged, they would be appended twice
+                if (!KIND_UPDATE.equals(queued.kind) || !queued.path.equals(write.path)
+                        || queued.value == null || write.value == null
+                        || ApidUpdate.mayAppendPluralElements(queued.value)
+                        || ApidUpdate.mayAppendPluralElements(write.value)) {
+                    break;
+                }
+                write.value = mergeUpdates(queued.value, write.value);
+                write.params = rebuildUpdateParams(write);
+            } else if (queued.isProfile() || !ApidChange.isWithin(queued.path, write.path)) {
+                // a replace or delete only overwrites what's at or under its own path
+                break;
+            }
+
+            write.callbacks.addAll(0, queued.callbacks);
+            mPending.remove(i);
+            retire(queued);
+            mMetrics.coalesced++;
+        }
+
+        mPending.add(write);
+        try {
+            appendToJournal(write.toJson());
+        } catch (JSONException e) {
+            throwDebugException(new RuntimeException("Unexpected", e));
+        }
+    }
+
+    /**
+     * @return the combined update of older followed by newer, in which newer's values win and objects present
+     * in both are merged
+     */
+    private static JSONObject mergeUpdates(JSONObject older, JSONObject newer) {
+        JSONObject merged = (JSONObject) JsonUtils.copyJsonVal(older);
+        Iterator<String> keys = newer.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object olderVal = merged.opt(key);
+            Object newerVal = newer.opt(key);
+            if (olderVal instanceof JSONObject && newerVal instanceof JSONObject) {
+                newerVal = mergeUpdates((JSONObject) olderVal, (JSONObject) newerVal);
+            }
+            JsonUtils.jsonObjectUnsafePut(merged, key, newerVal);
+        }
+        return merged;
+    }
+
+    private static List<Pair<String, String>> rebuildUpdateParams(Write write) {
+        List<Pair<String, String>> params = new ArrayList<Pair<String, String>>();
+        params.add(new Pair<String, String>("value", write.value.toString()));
+        if (!write.path.equals("/")) params.add(new Pair<String, String>("attribute_name", write.path));
+        return params;
+    }
+
+    private void scheduleDrain(long delayMillis) {
+        mHandler.removeCallbacks(mDrainRunnable);
+        mHandler.postDelayed(mDrainRunnable, delayMillis);
+    }
+
+    /**
+     * Sends the write at the head of the queue, unless one is already in flight. Runs on the main thread.
+     */
+    private void drain() {
+        final Write write;
+        synchronized (this) {
+            if (mInFlight != null || mPending.isEmpty()) return;
+            write = mInFlight = mPending.get(0);
+        }
+
+        String accessToken = write.accessToken;
+        if (write.user != null) {
+            CaptureRecord user = signedInUserFor(write);
+            if (user == null) {
+                synchronized (this) {
+                    mInFlight = null;
+                }
+                LogUtils.loge("Dropping Capture write of a user who is no longer signed in: " + write.url);
+                finishWrite(write, new CaptureApiError("The user the write was queued for is not signed in"));
+                return;
+            }
+            accessToken = user.accessToken;
+        }
+
+        if (!isNetworkConnected()) {
+            // wait for connectivity to return rather than sending a write which can't arrive
+            synchronized (this) {
+                mInFlight = null;
+                mMetrics.networkFailures++;
+            }
+            scheduleDrain(RETRY_INTERVAL_MILLIS);
+            return;
+        }
+
+        CaptureApiConnection connection = new CaptureApiConnection(write.url);
+        for (Pair<String, String> param : write.params) connection.addAllToParams(param.first, param.second);
+        if (write.isProfile()) {
+            connection.addAllToParams(
+                    "client_id", Jump.getCaptureClientId(),
+                    "locale", Jump.getCaptureLocale(),
+                    "flow", Jump.getCaptureFlowName(),
+                    "flow_version", Jump.getCaptureFlowVersion(),
+                    "form", write.path);
+        }
+        connection.idempotent = write.idempotent;
+        connection.maybeAddParam("access_token", accessToken);
+        connection.fetchResponseMaybeJson(new ApiConnection.FetchCallback() {
+            public void run(Object response) {
+                onWriteFinished(write, response);
+            }
+        });
+    }
+
+    private boolean isNetworkConnected() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = connectivityManager == null ? null : connectivityManager.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    /**
+     * @return the user of a write of a known user, if they are still signed in, else null
+     */
+    private static CaptureRecord signedInUserFor(Write write) {
+        CaptureRecord user = Jump.getSignedInUser();
+        if (user == null || user.accessToken == null || !write.user.equals(userKey(user))) return null;
+        return user;
+    }
+
+    /**
+     * @return the uuid identifying the user of record, or null if it has none
+     */
+    private static String userKey(CaptureRecord record) {
+        Object uuid = record.opt("uuid");
+        return uuid instanceof String ? (String) uuid : null;
+    }
+
+    /**
+     * @param response the JSONObject response, a String for a response which isn't JSON, or null if the
+     *                 request failed without a response
+     */
+    private void onWriteFinished(final Write write, Object response) {
+        if (!(response instanceof JSONObject)
+                || ((JSONObject) response).optInt("code") == CaptureApiError.REQUEST_TIMEOUT) {
+            onWriteOutcomeUnknown(write, response);
+            return;
+        }
+        onWriteFinished(write, (JSONObject) response);
+    }
+
+    private void onWriteFinished(final Write write, JSONObject response) {
+
+        if (response.optInt("code") == ACCESS_TOKEN_EXPIRED && write.user != null && !write.tokenRefreshed) {
+            CaptureRecord user = signedInUserFor(write);
+            if (user != null) {
+                // refresh the user's token and send the write again, it stays in flight meanwhile
+                write.tokenRefreshed = true;
+                user.refreshAccessToken(new CaptureApiRequestCallback() {
+                    public void onSuccess() {
+                        synchronized (CaptureWriteQueue.this) {
+                            mInFlight = null;
+                        }
+                        scheduleDrain(0);
+                    }
+
+                    public void onFailure(CaptureApiError e) {
+                        boolean noNetwork = e == CaptureApiError.INVALID_API_RESPONSE
+                                || e.code == CaptureApiError.REQUEST_TIMEOUT;
+                        synchronized (CaptureWriteQueue.this) {
+                            mInFlight = null;
+                            if (noNetwork) mMetrics.networkFailures++;
+                        }
+                        if (noNetwork) {
+                            write.tokenRefreshed = false;
+                            scheduleDrain(RETRY_INTERVAL_MILLIS);
+                        } else {
+                            finishWrite(write, e);
+                        }
+                    }
+                });
+                return;
+            }
+        }
+
+        synchronized (this) {
+            mInFlight = null;
+        }
+        boolean applied = "ok".equals(response.opt("stat"));
+        finishWrite(write, applied ? null : new CaptureApiError(response, null, null));
+    }
+
+    /**
+     * Handles a write which may or may not have been applied: it timed out, the connection failed, or the
+     * response couldn't be read. An idempotent write is sent again later, unless it has run out of attempts.
+     * Any other write is failed, sending it again could apply it twice, e.g. appending plural elements again.
+     */
+    private void onWriteOutcomeUnknown(Write write, Object response) {
+        // a connection which failed with the network already gone is retried when it returns, uncounted
+        boolean networkLost = response == null && !isNetworkConnected();
+        if (!networkLost) write.unknownOutcomes++;
+        if (write.idempotent && write.unknownOutcomes < MAX_ATTEMPTS) {
+            synchronized (this) {
+                mInFlight = null;
+                mMetrics.networkFailures++;
+            }
+            if (LogUtils.isDebugEnabled()) LogUtils.logd("Capture write deferred: " + write.url);
+            scheduleDrain(RETRY_INTERVAL_MILLIS);
+            return;
+        }
+
+        synchronized (this) {
+            mInFlight = null;
+        }
+        finishWrite(write, response instanceof JSONObject
+                ? new CaptureApiError((JSONObject) response, null, null)
+                : CaptureApiError.INVALID_API_RESPONSE);
+    }
+
+    /**
+     * Removes write from the queue and reports its outcome to its callbacks
+     *
+     * @param error the reason the write failed, or null if Capture applied it
+     */
+    private void finishWrite(Write write, CaptureApiError error) {
+        synchronized (this) {
+            if (error != null) {
+                mMetrics.rejected++;
+                LogUtils.loge("Capture write rejected: " + write.url + " " + error);
+            } else {
+                long latency = System.currentTimeMillis() - write.enqueuedAt;
+                mMetrics.applied++;
+                mMetrics.totalReplayLatencyMillis += latency;
+                mMetrics.maxReplayLatencyMillis = Math.max(mMetrics.maxReplayLatencyMillis, latency);
+            }
+            // a write cleared while in flight is no longer queued or journaled
+            if (mPending.remove(write)) retire(write);
+        }
+
+        for (CaptureApiRequestCallback callback : write.callbacks) {
+            if (error == null) {
+                callback.onSuccess();
+            } else {
+                callback.onFailure(error);
+            }
+        }
+        scheduleDrain(0);
+    }
+
+    /**
+     * The changes of one synchronization of a record. Once they have all finished, it advances the record's
+     * original past the changes Capture applied, then calls callback, which may be null.
+     */
+    private class QueuedSync {
+        private final CaptureRecord mRecord;
+        private final JSONObject mBaseline;
+        private final CaptureApiRequestCallback mCallback;
+        private final List<ApidChange> mRejected = new ArrayList<ApidChange>();
+        private int mRemaining;
+        private CaptureApiError mFirstError;
+
+        QueuedSync(CaptureRecord record, JSONObject baseline, int count, CaptureApiRequestCallback callback) {
+            mRecord = record;
+            mBaseline = baseline;
+            mRemaining = count;
+            mCallback = callback;
+        }
+
+        CaptureApiRequestCallback callbackFor(final ApidChange change) {
+            return new CaptureApiRequestCallback() {
+                public void onSuccess() {
+                    onChangeFinished(change, null);
+                }
+
+                public void onFailure(CaptureApiError e) {
+                    onChangeFinished(change, e);
+                }
+            };
+        }
+
+        private void onChangeFinished(ApidChange change, CaptureApiError error) {
+            if (error != null) {
+                mRejected.add(change);
+                if (mFirstError == null) mFirstError = error;
+            }
+            if (--mRemaining > 0) return;
+
+            mRecord.onQueuedSyncFinished(mBaseline, mRejected);
+            if (mRecord == Jump.getSignedInUser()) mRecord.saveToDisk(mContext);
+            if (mCallback == null) return;
+            if (mFirstError == null) {
+                mCallback.onSuccess();
+            } else {
+                mCallback.onFailure(mFirstError);
+            }
+        }
+    }
+
+    /**
+     * Records that write has left the queue. Must be called with this held.
+     */
+    private void retire(Write write) {
+        try {
+            appendToJournal(new JSONObject().put("op", "remove").put("id", write.id));
+        } catch (JSONException e) {
+            throwDebugException(new RuntimeException("Unexpected", e));
+        }
+
+        if (++mRetiredSinceCompaction >= COMPACTION_THRESHOLD) compactJournal();
+    }
+
+    private void appendToJournal(JSONObject record) {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mJournal, true);
+            fos.write((record.toString() + "\n").getBytes("UTF-8"));
+        } catch (IOException e) {
+            LogUtils.loge("Failed to journal Capture write", e);
+        } finally {
+            if (fos != null) try {
+                fos.close();
+            } catch (IOException e) {
+                LogUtils.loge("Failed to journal Capture write", e);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with just the queued writes, replacing it atomically
+     */
+    private void compactJournal() {
+        File compacted = new File(mJournal.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(compacted);
+            for (Write write : mPending) fos.write((write.toJson().toString() + "\n").getBytes("UTF-8"));
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            if (!compacted.renameTo(mJournal)) throw new IOException("rename failed: " + compacted);
+            mRetiredSinceCompaction = 0;
+        } catch (IOException e) {
+            LogUtils.loge("Failed to compact Capture write journal", e);
+        } catch (JSONException e) {
+            throwDebugException(new RuntimeException("Unexpected", e));
+        } finally {
+            if (fos != null) try {
+                fos.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the queue from the journal, skipping a torn last record
+     */
+    private synchronized void loadJournal() {
+        if (!mJournal.exists()) return;
+
+        Map<Long, Write> writes = new HashMap<Long, Write>();
+        List<Long> order = new ArrayList<Long>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mJournal));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                try {
+                    JSONObject record = new JSONObject(line);
+                    if ("add".equals(record.optString("op"))) {
+                        Write write = Write.fromJson(record);
+                        writes.put(write.id, write);
+                        order.add(write.id);
+                    } else {
+                        writes.remove(record.getLong("id"));
+                    }
+                } catch (JSONException e) {
+                    LogUtils.loge("Skipping bad Capture write journal record: " + line);
+                }
+            }
+        } catch (IOException e) {
+            LogUtils.loge("Failed to read Capture write journal", e);
+        } finally {
+            if (reader != null) try {
+                reader.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+        for (Iterator<Long> i = order.iterator(); i.hasNext(); ) {
+            Write write = writes.get(i.next());
+            if (write == null) continue;
+            mPending.add(write);
+            mNextId = Math.max(mNextId, write.id + 1);
+        }
+        compactJournal();
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+
+package com.janrain.android.capture;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An immutable JSON value used to diff and compare Capture records without going through org.json.
+ *
+ * Numbers and booleans are stored as primitives, object keys are sorted once when the node is built and
+ * kept with the values in parallel arrays, and every node caches a 64 bit Merkle hash of its subtree.
+ * Nodes order and compare like JsonUtils.compareJsonVals, including telling Integer and Long apart, and
+ * convert back to org.json values with toJson.
+ *
+ * Strings and keys are hashed over their chars with 64 bit FNV-1a, so unequal subtrees almost always have
+ * unequal hashes and are told apart without walking them. Equal hashes are still confirmed structurally,
+ * since a collision would silently drop a change from a diff; subtrees shared by identity, as between a
+ * structurally sharing record and its original, confirm in constant time.
+ */
+/*package*/ final class JsonNode {
+    /*package*/ static final int NULL = 0;
+    /*package*/ static final int BOOLEAN = 1;
+    /*package*/ static final int INTEGER = 2;
+    /*package*/ static final int LONG = 3;
+    /*package*/ static final int DOUBLE = 4;
+    /*package*/ static final int STRING = 5;
+    /*package*/ static final int ARRAY = 6;
+    /*package*/ static final int OBJECT = 7;
+
+    // the org.json type of each kind, mismatched kinds are ordered by these names like compareJsonVals
+    private static final String[] KIND_CLASS_NAMES = {
+            JSONObject.NULL.getClass().getName(),
+            Boolean.class.getName(),
+            Integer.class.getName(),
+            Long.class.getName(),
+            Double.class.getName(),
+            String.class.getName(),
+            JSONArray.class.getName(),
+            JSONObject.class.getName(),
+    };
+
+    private static final String[] NO_KEYS = new String[0];
+    private static final JsonNode[] NO_VALUES = new JsonNode[0];
+    private static final JsonNode NULL_NODE = new JsonNode(NULL, 0, 0, null, NO_KEYS, NO_VALUES);
+
+    /*package*/ final int kind;
+    private final long longValue;
+    private final double doubleValue;
+    private final String stringValue;
+    private final String[] keys;
+    private final JsonNode[] values;
+    // a Merkle hash of this subtree, built from the hashes of the child nodes
+    private final long contentHash;
+
+    private JsonNode(int kind, long longValue, double doubleValue, String stringValue, String[] keys,
+                     JsonNode[] values) {
+        this.kind = kind;
+        this.longValue = longValue;
+        this.doubleValue = doubleValue;
+        this.stringValue = stringValue;
+        this.keys = keys;
+        this.values = values;
+
+        long h = mix(kind + 1);
+        h = mix(h ^ longValue);
+        h = mix(h ^ Double.doubleToLongBits(doubleValue));
+        if (stringValue != null) h = mix(h ^ hash(stringValue));
+        for (String key : keys) h = mix(h ^ hash(key));
+        for (JsonNode value : values) h = mix(h ^ value.contentHash);
+        contentHash = h;
+    }
+
+    /**
+     * @return the 64 bit FNV-1a hash of the chars of s
+     */
+    private static long hash(String s) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            h = (h ^ (c & 0xFF)) * 0x100000001B3L;
+            h = (h ^ (c >>> 8)) * 0x100000001B3L;
+        }
+        return h;
+    }
+
+    private static long mix(long h) {
+        // a MurmurHash3 style 64 bit mixing step
+        h *= 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Builds a node tree from an org.json value
+     * @param val a JSONObject, JSONArray, String, Boolean, Integer, Long, Double or JSONObject.NULL
+     * @return the node for val
+     * @throws IllegalArgumentException if val is not a JSON value
+     */
+    /*package*/ static JsonNode of(Object val) throws IllegalArgumentException {
+        return of(val, null, false);
+    }
+
+    /**
+     * Like of(Object), but reuses the node of any container found in nodes, by identity, instead of
+     * building it again
+     * @param nodes the nodes of containers which are never written, by identity, or null
+     * @param addToNodes true to add the nodes built for val's containers to nodes, only if they too are never
+     *                   written
+     */
+    /*package*/ static JsonNode of(Object val, Map<Object, JsonNode> nodes, boolean addToNodes)
+            throws IllegalArgumentException {
+        if (nodes == null || !(val instanceof JSONObject || val instanceof JSONArray)) {
+            return build(val, nodes, addToNodes);
+        }
+        JsonNode node = nodes.get(val);
+        if (node == null) {
+            node = build(val, nodes, addToNodes);
+            if (addToNodes) nodes.put(val, node);
+        }
+        return node;
+    }
+
+    private static JsonNode build(Object val, Map<Object, JsonNode> nodes, boolean addToNodes) {
+        if (val instanceof JSONObject) {
+            JSONObject object = (JSONObject) val;
+            String[] keys = new String[object.length()];
+            Iterator<String> keyIterator = object.keys();
+            for (int i = 0; keyIterator.hasNext(); i++) keys[i] = keyIterator.next();
+            Arrays.sort(keys);
+            JsonNode[] values = new JsonNode[keys.length];
+            for (int i = 0; i < keys.length; i++) values[i] = of(object.opt(keys[i]), nodes, addToNodes);
+            return new JsonNode(OBJECT, 0, 0, null, keys, values);
+        } else if (val instanceof JSONArray) {
+            JSONArray array = (JSONArray) val;
+            JsonNode[] values = new JsonNode[array.length()];
+            for (int i = 0; i < values.length; i++) values[i] = of(array.opt(i), nodes, addToNodes);
+            return new JsonNode(ARRAY, 0, 0, null, NO_KEYS, values);
+        } else if (val instanceof String) {
+            return new JsonNode(STRING, 0, 0, (String) val, NO_KEYS, NO_VALUES);
+        } else if (val instanceof Long) {
+            return new JsonNode(LONG, (Long) val, 0, null, NO_KEYS, NO_VALUES);
+        } else if (val instanceof Integer || val instanceof Byte) {
+            return new JsonNode(INTEGER, ((Number) val).intValue(), 0, null, NO_KEYS, NO_VALUES);
+        } else if (val instanceof Double) {
+            return new JsonNode(DOUBLE, 0, (Double) val, null, NO_KEYS, NO_VALUES);
+        } else if (val instanceof Boolean) {
+            return new JsonNode(BOOLEAN, (Boolean) val ? 1 : 0, 0, null, NO_KEYS, NO_VALUES);
+        } else if (JSONObject.NULL.equals(val)) {
+            return NULL_NODE;
+        } else {
+            throw new IllegalArgumentException("Unexpected JSON value: " + val);
+        }
+    }
+
+    /**
+     * @return a new org.json value equal to this node
+     */
+    /*package*/ Object toJson() {
+        switch (kind) {
+            case OBJECT:
+                JSONObject object = new JSONObject();
+                try {
+                    for (int i = 0; i < keys.length; i++) object.put(keys[i], values[i].toJson());
+                } catch (JSONException e) {
+                    throw new IllegalStateException(e);
+                }
+                return object;
+            case ARRAY:
+                JSONArray array = new JSONArray();
+                for (JsonNode value : values) array.put(value.toJson());
+                return array;
+            case STRING:
+                return stringValue;
+            case LONG:
+                return longValue;
+            case INTEGER:
+                return (int) longValue;
+            case DOUBLE:
+                return doubleValue;
+            case BOOLEAN:
+                return longValue != 0;
+            default:
+                return JSONObject.NULL;
+        }
+    }
+
+    /*package*/ String getKindName() {
+        String className = KIND_CLASS_NAMES[kind];
+        return className.substring(className.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @return the sorted keys of an object node, shared with this node and not to be modified
+     */
+    /*package*/ String[] keys() {
+        return keys;
+    }
+
+    /**
+     * @return the number of fields of an object node or elements of an array node
+     */
+    /*package*/ int size() {
+        return values.length;
+    }
+
+    /**
+     * @param index an element or field index
+     * @return the element at index of an array node, or the value of the field keys()[index] of an object
+     */
+    /*package*/ JsonNode get(int index) {
+        return values[index];
+    }
+
+    /**
+     * @param key a field name
+     * @return the value of the field of an object node, or null if there is no such field
+     */
+    /*package*/ JsonNode get(String key) {
+        int index = Arrays.binarySearch(keys, key);
+        return index < 0 ? null : values[index];
+    }
+
+    /*package*/ long longValue() {
+        return longValue;
+    }
+
+    /**
+     * @return true if this is an object with an Integer or Long "id" field, as Capture plural elements have
+     */
+    /*package*/ boolean hasId() {
+        JsonNode id = get("id");
+        return id != null && (id.kind == INTEGER || id.kind == LONG);
+    }
+
+    /**
+     * Orders nodes like JsonUtils.compareJsonVals orders the equivalent org.json values
+     * @param other another node
+     * @return 0 if the nodes are equal
+     */
+    /*package*/ int compareTo(JsonNode other) {
+        if (this == other) return 0;
+        if (kind != other.kind) return KIND_CLASS_NAMES[kind].compareTo(KIND_CLASS_NAMES[other.kind]);
+
+        switch (kind) {
+            case OBJECT:
+                int i = 0, j = 0;
+                while (i < keys.length || j < other.keys.length) {
+                    int keyOrder = i == keys.length ? 1 : j == other.keys.length ? -1
+                            : keys[i].compareTo(other.keys[j]);
+                    if (keyOrder > 0) return -1; // missing from this
+                    if (keyOrder < 0) return 1; // missing from other
+                    int comparison = values[i++].compareTo(other.values[j++]);
+                    if (comparison != 0) return comparison;
+                }
+                return 0;
+            case ARRAY:
+                for (int index = 0; index < values.length; index++) {
+                    if (index >= other.values.length) return 1;
+                    int comparison = values[index].compareTo(other.values[index]);
+                    if (comparison != 0) return comparison;
+                }
+                return other.values.length > values.length ? -1 : 0;
+            case STRING:
+                return stringValue.compareTo(other.stringValue);
+            case DOUBLE:
+                return Double.compare(doubleValue, other.doubleValue);
+            case NULL:
+                return 0;
+            default:
+                return longValue < other.longValue ? -1 : longValue == other.longValue ? 0 : 1;
+        }
+    }
+
+    /**
+     * @return true if other is equal to this node. Unequal hashes and shared nodes are settled in constant
+     * time, equal hashes of distinct nodes are confirmed by walking both.
+     */
+    /*package*/ boolean sameContent(JsonNode other) {
+        return this == other || (contentHash == other.contentHash && compareTo(other) == 0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof JsonNode)) return false;
+        return sameContent((JsonNode) o);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (contentHash ^ (contentHash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        writeTo(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends this node as compact JSON, with object keys in sorted order
+     * @param sb the builder to append to
+     */
+    /*package*/ void writeTo(StringBuilder sb) {
+        switch (kind) {
+            case OBJECT:
+                sb.append('{');
+                for (int i = 0; i < keys.length; i++) {
+                    if (i > 0) sb.append(',');
+                    sb.append(JSONObject.quote(keys[i])).append(':');
+                    values[i].writeTo(sb);
+                }
+                sb.append('}');
+                break;
+            case ARRAY:
+                sb.append('[');
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) sb.append(',');
+                    values[i].writeTo(sb);
+                }
+                sb.append(']');
+                break;
+            case STRING:
+                sb.append(JSONObject.quote(stringValue));
+                break;
+            case DOUBLE:
+                try {
+                    sb.append(JSONObject.numberToString(doubleValue));
+                } catch (JSONException e) {
+                    throw new IllegalStateException(e);
+                }
+                break;
+            case BOOLEAN:
+                sb.append(longValue != 0);
+                break;
+            case NULL:
+                sb.append("null");
+                break;
+            default:
+                sb.append(longValue);
+        }
+    }
+}
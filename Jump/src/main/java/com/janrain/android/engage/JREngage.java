@@ -77,10 +77,12 @@ import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v4.content.LocalBroadcastManager;
+import android.text.TextUtils;
 import android.view.View;
 import android.widget.FrameLayout;
 
 import com.janrain.android.Jump;
+import com.janrain.android.engage.net.JRConnectionManager;
 import com.janrain.android.engage.net.async.HttpResponseHeaders;
 import com.janrain.android.engage.session.JRProvider;
 import com.janrain.android.engage.session.JRSession;
@@ -261,6 +263,8 @@ public class JREngage {
         }
 
         if (sLoggingEnabled == null) sLoggingEnabled = AndroidUtils.isApplicationDebuggable(context);
+        JRConnectionManager.enableResponseCache(context);
+        JRConnectionManager.preresolveHosts(TextUtils.isEmpty(appUrl) ? JRSession.RPXNOW_HOST : appUrl);
 
         LogUtils.logd("git resource '" + context.getString(jr_git_describe) +
                 "' activity '" + context + "' appId '" + appId + "' tokenUrl '" + tokenUrl + "'");
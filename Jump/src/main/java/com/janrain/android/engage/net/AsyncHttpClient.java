@@ -50,11 +50,16 @@
 package com.janrain.android.engage.net;
 
 import android.os.Handler;
+import android.os.Looper;
 import com.janrain.android.engage.net.async.HttpResponseHeaders;
-import com.janrain.android.utils.IoUtils;
 import com.janrain.android.utils.LogUtils;
-import com.squareup.okhttp.OkHttpClient;
+import com.janrain.android.utils.ThreadUtils;
 import com.squareup.okhttp.apache.OkApacheClient;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.GzipSource;
+import okio.Okio;
+import okio.Source;
 
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
@@ -63,18 +68,17 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.message.BasicNameValuePair;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPInputStream;
+import java.util.List;
 
 import static com.janrain.android.engage.net.JRConnectionManager.ManagedConnection;
+import static com.janrain.android.engage.net.JRConnectionManagerDelegate.StreamingJRConnectionManagerDelegate;
 
 /**
  * @internal
@@ -84,133 +88,399 @@ import static com.janrain.android.engage.net.JRConnectionManager.ManagedConnecti
 /*package*/ class AsyncHttpClient {
     private static String USER_AGENT;
     private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
     private static final String ENCODING_GZIP = "gzip";
+    private static volatile boolean sUseNativeOkHttp;
+    private static volatile Transport sTransport;
+    private static final Transport sOkHttpTransport = new OkHttpTransport();
 
     private AsyncHttpClient() {}
 
     /*package*/ static class HttpExecutor implements Runnable {
         private static final HttpClient mHttpClient = setupHttpClient();
+        private static final long SEGMENT_BYTES = 8192;
+        // deadlines are timed on the main Looper, whose thread is always running
+        private static final Handler sDeadlineHandler = new Handler(Looper.getMainLooper());
         private final Handler mHandler;
         private final ManagedConnection mConn;
         private final JRConnectionManager.HttpCallback callBack;
+        private final int mAttempt;
+        private final long mEnqueuedAt = System.currentTimeMillis();
+        private NetworkMetrics.RequestMetrics mMetrics;
 
         /*package*/ HttpExecutor(Handler handler, ManagedConnection managedConnection) {
+            this(handler, managedConnection, 1);
+        }
+
+        private HttpExecutor(Handler handler, ManagedConnection managedConnection, int attempt) {
             mConn = managedConnection;
             mHandler = handler;
+            mAttempt = attempt;
             callBack = new JRConnectionManager.HttpCallback(mConn);
         }
 
         static private HttpClient setupHttpClient() {
-            OkHttpClient client = new OkHttpClient();
-            client.setConnectTimeout(30, TimeUnit.SECONDS);
-            client.setFollowRedirects(false);
-            OkApacheClient apacheClient = new OkApacheClient(client);
-
-            return apacheClient;
+            return new OkApacheClient(SharedOkHttpClient.get(false));
         }
 
         public void run() {
+            if (mConn.isAborted()) {
+                // stopped while queued, don't tie up the thread with a request nobody will receive
+                if (LogUtils.isDebugEnabled()) {
+                    LogUtils.logd("Skipping aborted request: " + mConn.getRequestUrl());
+                }
+                deliverResponse(new AsyncHttpResponse(mConn, null, null, null));
+                return;
+            }
+
+            HttpUriRequest request = mConn.getHttpRequest();
+            mMetrics = NetworkMetrics.begin(request.getMethod(), mConn.getRequestUrl(), mAttempt,
+                    System.currentTimeMillis() - mEnqueuedAt);
+
+            long deadline = mConn.getDeadline();
+            if (deadline != 0 && System.currentTimeMillis() >= deadline) {
+                // e.g. queued behind other work, or the rest of a multi-request operation, for too long
+                deliverTimeout(new RequestTimeoutException("Deadline passed before the request started", true,
+                        null));
+                NetworkMetrics.finish(mMetrics);
+                return;
+            }
+
+            Runnable watchdog = null;
+            if (deadline != 0) {
+                watchdog = new Runnable() {
+                    public void run() {
+                        mConn.expire();
+                    }
+                };
+                sDeadlineHandler.postDelayed(watchdog, deadline - System.currentTimeMillis());
+            }
+
             try {
-                HttpUriRequest request = mConn.getHttpRequest();
-                InetAddress ia = InetAddress.getByName(request.getURI().getHost());
-                LogUtils.logd("Requesting: " + mConn.getRequestUrl() + " (" + ia.getHostAddress() + ")");
+                execute(request);
+            } finally {
+                if (watchdog != null) sDeadlineHandler.removeCallbacks(watchdog);
+                NetworkMetrics.finish(mMetrics);
+            }
+        }
+
+        private void execute(HttpUriRequest request) {
+            CircuitBreaker breaker = CircuitBreaker.forHost(request.getURI().getHost());
+            if (!breaker.allowRequest()) {
+                LogUtils.loge("Failing fast, circuit open: " + mConn.getRequestUrl());
+                IOException e = new CircuitBreaker.OpenCircuitException(request.getURI().getHost());
+                mMetrics.setError(e);
+                deliverResponse(new AsyncHttpResponse(mConn, e, null, null));
+                return;
+            }
 
-                if (USER_AGENT != null) {
-                    request.addHeader("User-Agent", USER_AGENT);
+            try {
+                if (LogUtils.isDebugEnabled()) {
+                    LogUtils.logd("Requesting: " + mConn.getRequestUrl() + " (attempt " + mAttempt + ")");
                 }
-                for (NameValuePair header : mConn.getRequestHeaders()) {
-                    request.addHeader(header.getName(), header.getValue());
+
+                if (mAttempt == 1) {
+                    if (USER_AGENT != null) {
+                        request.addHeader("User-Agent", USER_AGENT);
+                    }
+                    for (NameValuePair header : mConn.getRequestHeaders()) {
+                        request.addHeader(header.getName(), header.getValue());
+                    }
                 }
 
-                LogUtils.logd("Headers: " + Arrays.asList(mConn.getHttpRequest().getAllHeaders()).toString());
-                if (mConn.getHttpRequest() instanceof HttpPost) {
-                    String postBody = EntityUtils.toString(((HttpPost) mConn.getHttpRequest()).getEntity());
-                    LogUtils.logd("POST to " + mConn.getRequestUrl() + ": " + postBody);
+                if (LogUtils.isDebugEnabled()) {
+                    LogUtils.logd("Headers: " + Arrays.asList(request.getAllHeaders()).toString());
+                    if (mConn.getPostData() != null) {
+                        String postBody = new String(mConn.getPostData(), "UTF-8");
+                        LogUtils.logd("POST to " + mConn.getRequestUrl() + ": " + postBody);
+                    }
                 }
 
-                HttpResponse response;
-                try {
-                    response = mHttpClient.execute(request);
-                } catch (IOException e) {
-                    // XXX Mediocre way to match exceptions from aborted requests:
-                    if (request.isAborted() && e.getMessage().contains("abort")) {
-                        throw new AbortedRequestException();
-                    } else {
-                        throw e;
+                if (mConn.getPostData() != null) {
+                    mMetrics.setRequestBytes(mConn.getPostData().length, mConn.getWirePostData().length);
+                }
+                mMetrics.markExecuting();
+                AsyncHttpResponse ahr;
+                Transport transport = sTransport;
+                if (transport != null) {
+                    ahr = executeWithTransport(transport, request);
+                } else if (sUseNativeOkHttp) {
+                    ahr = executeWithTransport(sOkHttpTransport, request);
+                } else {
+                    ahr = executeWithApacheClient(request);
+                }
+
+                int statusCode = ahr.getHeaders().getResponseCode();
+                mMetrics.setStatusCode(statusCode);
+                if (statusCode >= 500) {
+                    breaker.recordFailure();
+                } else {
+                    breaker.recordSuccess();
+                }
+                if (RetryPolicy.isRetryableStatus(statusCode)
+                        && scheduleRetry(ahr.getHeaders().getRetryAfterMillis())) {
+                    return;
+                }
+
+                deliverResponse(ahr);
+            } catch (IOException e) {
+                mMetrics.setError(e);
+                if (mConn.isTimedOut()) {
+                    deliverTimeout(new RequestTimeoutException("Deadline exceeded", true, e));
+                    return;
+                }
+                if (mConn.isAborted()) {
+                    // cancelling the call closes its socket out from under the reading thread
+                    LogUtils.loge("Aborted request: " + mConn.getRequestUrl());
+                    deliverResponse(new AsyncHttpResponse(mConn, null, null, null));
+                    return;
+                }
+                breaker.recordFailure();
+                LogUtils.loge("IOException while executing HTTP request.", e);
+                if (scheduleRetry(-1)) return;
+
+                LogUtils.loge(this.toString());
+                if (e instanceof InterruptedIOException) {
+                    // a socket connect, read or write timed out
+                    deliverTimeout(new RequestTimeoutException(e.getMessage(), false, e));
+                    return;
+                }
+                deliverResponse(new AsyncHttpResponse(mConn, e, null, null));
+            } catch (AbortedRequestException e) {
+                mMetrics.setError(e);
+                if (mConn.isTimedOut()) {
+                    deliverTimeout(new RequestTimeoutException("Deadline exceeded", true, null));
+                    return;
+                }
+                LogUtils.loge("Aborted request: " + mConn.getRequestUrl());
+                deliverResponse(new AsyncHttpResponse(mConn, null, null, null));
+            }
+        }
+
+        /**
+         * Schedules the next attempt of this connection's request, if its retry policy allows one. The wait
+         * happens on the callback Looper, so that it doesn't hold a pool thread, and the attempt runs in the
+         * connection's priority lane. Without a Looper the wait and the attempt are synchronous.
+         *
+         * @param retryAfterMillis the delay the server asked for, or -1
+         * @return true if a retry was scheduled, false if the failure should be delivered
+         */
+        private boolean scheduleRetry(long retryAfterMillis) {
+            if (mConn.isAborted() || mConn.isTimedOut()) return false;
+            long delay = mConn.getRetryPolicy().getRetryDelayMillis(mAttempt, retryAfterMillis);
+            if (delay < 0) return false;
+            long deadline = mConn.getDeadline();
+            if (deadline != 0 && System.currentTimeMillis() + delay >= deadline) return false;
+
+            if (LogUtils.isDebugEnabled()) {
+                LogUtils.logd("Retrying in " + delay + "ms: " + mConn.getRequestUrl());
+            }
+            final HttpExecutor retry = new HttpExecutor(mHandler, mConn, mAttempt + 1);
+            if (mHandler != null) {
+                mHandler.postDelayed(new Runnable() {
+                    public void run() {
+                        ThreadUtils.executeInBg(retry, mConn.getPriority());
                     }
+                }, delay);
+            } else {
+                // publish this attempt before the synchronous retry starts timing its own
+                NetworkMetrics.finish(mMetrics);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
                 }
+                retry.run();
+            }
+            return true;
+        }
 
-                if (request.isAborted()) throw new AbortedRequestException();
+        private void deliverTimeout(RequestTimeoutException e) {
+            LogUtils.loge("Timed out: " + mConn.getRequestUrl(), e);
+            mMetrics.setError(e);
+            deliverResponse(new AsyncHttpResponse(mConn, e, null, null));
+        }
 
-                // Fetching the status code allows the response interceptor to have a chance to un-gzip the
-                // entity before we fetch it.
-                response.getStatusLine().getStatusCode();
+        /**
+         * Delivers the response to this connection's delegate, and to the delegates of any identical GETs
+         * which joined this one while it was in flight.
+         */
+        private void deliverResponse(AsyncHttpResponse response) {
+            mConn.setResponse(response);
+            invokeCallback(mHandler, callBack);
 
-                HttpResponseHeaders headers = HttpResponseHeaders.fromResponse(response, request);
+            for (ManagedConnection follower : JRConnectionManager.finishInFlightRequest(mConn)) {
+                follower.setResponse(response);
+                invokeCallback(follower.getHandler(), new JRConnectionManager.HttpCallback(follower));
+            }
+        }
 
-                HttpEntity entity = response.getEntity();
-                byte[] responseBody;
-                if (entity == null) {
-                    responseBody = new byte[0];
+        /**
+         * Executes the request through the OkApacheClient bridge, converting the response entity back from
+         * the Apache HttpEntity representation.
+         */
+        private AsyncHttpResponse executeWithApacheClient(HttpUriRequest request)
+                throws IOException, AbortedRequestException {
+            HttpResponse response;
+            try {
+                response = mHttpClient.execute(request);
+            } catch (IOException e) {
+                // XXX Mediocre way to match exceptions from aborted requests:
+                if (request.isAborted() && e.getMessage().contains("abort")) {
+                    throw new AbortedRequestException();
                 } else {
-                    responseBody = EntityUtils.toByteArray(entity);
-                    entity.consumeContent();
-
-                    final Header encoding = entity.getContentEncoding();
-                    if (encoding != null) {
-                        for (HeaderElement element : encoding.getElements()) {
-                            if (element.getName().equalsIgnoreCase(ENCODING_GZIP)) {
-                                GZIPInputStream gis =
-                                        new GZIPInputStream(new ByteArrayInputStream(responseBody));
-                                responseBody = IoUtils.readAndClose(gis, true);
-                                break;
-                            }
+                    throw e;
+                }
+            }
+
+            if (request.isAborted()) throw new AbortedRequestException();
+
+            // Fetching the status code allows the response interceptor to have a chance to un-gzip the
+            // entity before we fetch it.
+            response.getStatusLine().getStatusCode();
+
+            HttpResponseHeaders headers = HttpResponseHeaders.fromResponse(response, request);
+
+            HttpEntity entity = response.getEntity();
+            BufferedSource body;
+            if (entity == null) {
+                body = new Buffer();
+            } else {
+                boolean gzipped = false;
+                final Header encoding = entity.getContentEncoding();
+                if (encoding != null) {
+                    for (HeaderElement element : encoding.getElements()) {
+                        if (element.getName().equalsIgnoreCase(ENCODING_GZIP)) {
+                            gzipped = true;
+                            break;
                         }
                     }
                 }
 
-                AsyncHttpResponse ahr;
-                String statusLine = response.getStatusLine().toString();
-                String bodyStr = new String(responseBody);
-                int bodySubStrLen = bodyStr.length() > 300 ? 300 : bodyStr.length();
-
-                switch (response.getStatusLine().getStatusCode()) {
-                    case HttpStatus.SC_OK:
-                        // Normal success
-                    case HttpStatus.SC_NOT_MODIFIED:
-                        // From mobile_config_and_baseurl called with an Etag
-                    case HttpStatus.SC_MOVED_PERMANENTLY:
-                    case HttpStatus.SC_SEE_OTHER:
-                    case HttpStatus.SC_TEMPORARY_REDIRECT:
-                    case HttpStatus.SC_MOVED_TEMPORARILY:
-                        // for UPS-1390 - don't error on 302s from token URL
-                    case HttpStatus.SC_CREATED:
-                        // Response from the Engage trail creation and maybe URL shortening calls
-                        LogUtils.logd(statusLine + ": " + bodyStr.substring(0, bodySubStrLen));
-                        ahr = new AsyncHttpResponse(mConn, null, headers, responseBody);
-                        break;
-                    default:
-                        LogUtils.loge(statusLine + "\n" + bodyStr.substring(0, bodySubStrLen));
-                        ahr = new AsyncHttpResponse(mConn, new Exception(statusLine), headers, responseBody);
-                }
+                Source content = Okio.source(entity.getContent());
+                body = Okio.buffer(gzipped ? new GzipSource(content) : content);
+            }
+
+            return readResponse(response.getStatusLine().getStatusCode(),
+                    response.getStatusLine().toString(), headers, body);
+        }
 
-                mConn.setResponse(ahr);
-                invokeCallback(callBack);
+        /**
+         * Executes the request with a Transport, by default with OkHttp directly, skipping the conversion to
+         * and from the Apache request and entity types, so that the call can use OkHttp's pooled and
+         * multiplexed connections.
+         */
+        private AsyncHttpResponse executeWithTransport(Transport transport, HttpUriRequest request)
+                throws IOException, AbortedRequestException {
+            List<NameValuePair> requestHeaders = new ArrayList<NameValuePair>();
+            for (Header header : request.getAllHeaders()) {
+                requestHeaders.add(new BasicNameValuePair(header.getName(), header.getValue()));
+            }
+            Transport.Request transportRequest = new Transport.Request(request.getMethod(),
+                    mConn.getRequestUrl(), requestHeaders, mConn.getWirePostData(),
+                    mConn.getFollowRedirects());
+            Transport.Call call = transport.newCall(transportRequest);
+            mConn.setCall(call);
+            Transport.Response response;
+            try {
+                response = call.execute();
             } catch (IOException e) {
-                LogUtils.loge(this.toString());
-                LogUtils.loge("IOException while executing HTTP request.", e);
-                mConn.setResponse(new AsyncHttpResponse(mConn, e, null, null));
-                invokeCallback(callBack);
-            } catch (AbortedRequestException e) {
-                LogUtils.loge("Aborted request: " + mConn.getRequestUrl());
-                mConn.setResponse(new AsyncHttpResponse(mConn, null, null, null));
-                invokeCallback(callBack);
+                if (request.isAborted()) throw new AbortedRequestException();
+                throw e;
+            }
+
+            if (request.isAborted()) {
+                response.body.close();
+                throw new AbortedRequestException();
             }
+
+            HttpResponseHeaders headers = HttpResponseHeaders.fromTransportResponse(response, request);
+
+            BufferedSource body = response.body;
+            if (ENCODING_GZIP.equalsIgnoreCase(response.header(HEADER_CONTENT_ENCODING))) {
+                // OkHttp only decompresses transparently when it negotiated gzip itself
+                body = Okio.buffer(new GzipSource(body));
+            }
+
+            return readResponse(response.code, response.getStatusLine(), headers, body);
         }
 
-        private void invokeCallback(JRConnectionManager.HttpCallback callBack) {
-            if (mHandler != null) {
-                mHandler.post(callBack);
+        /**
+         * Consumes the decompressed response body. Successful responses for a streaming delegate are handed
+         * to the delegate as they arrive, on this thread, and no payload is retained. Everything else is
+         * read into memory for delivery on the callback thread, and abandoned as soon as the connection is
+         * aborted.
+         */
+        private AsyncHttpResponse readResponse(int statusCode, String statusLine,
+                                               HttpResponseHeaders headers, BufferedSource body)
+                throws IOException, AbortedRequestException {
+            long bodyStart = System.currentTimeMillis();
+            body = mMetrics.countDecodedBytes(body);
+            try {
+                JRConnectionManagerDelegate delegate = mConn.getDelegate();
+                if (isExpectedStatus(statusCode) && delegate instanceof StreamingJRConnectionManagerDelegate) {
+                    ((StreamingJRConnectionManagerDelegate) delegate).connectionDidReceiveBody(headers, body,
+                            mConn.getRequestUrl(), mConn.getTag());
+                    // drain whatever the delegate left unread so that the response cache can commit the entry
+                    Buffer discard = new Buffer();
+                    while (!mConn.isAborted() && !mConn.isTimedOut()
+                            && body.read(discard, SEGMENT_BYTES) != -1) {
+                        discard.clear();
+                    }
+                    if (LogUtils.isDebugEnabled()) LogUtils.logd(statusLine + ": (streamed)");
+                    return new AsyncHttpResponse(mConn, null, headers, null);
+                }
+
+                Buffer payload = new Buffer();
+                while (body.read(payload, SEGMENT_BYTES) != -1) {
+                    if (mConn.isAborted() || mConn.isTimedOut()) throw new AbortedRequestException();
+                }
+                return buildResponse(statusCode, statusLine, headers, payload.readByteArray());
+            } finally {
+                body.close();
+                mMetrics.setBodyMillis(System.currentTimeMillis() - bodyStart);
+            }
+        }
+
+        private static boolean isExpectedStatus(int statusCode) {
+            switch (statusCode) {
+                case HttpStatus.SC_OK:
+                    // Normal success
+                case HttpStatus.SC_NOT_MODIFIED:
+                    // From mobile_config_and_baseurl called with an Etag
+                case HttpStatus.SC_MOVED_PERMANENTLY:
+                case HttpStatus.SC_SEE_OTHER:
+                case HttpStatus.SC_TEMPORARY_REDIRECT:
+                case HttpStatus.SC_MOVED_TEMPORARILY:
+                    // for UPS-1390 - don't error on 302s from token URL
+                case HttpStatus.SC_CREATED:
+                    // Response from the Engage trail creation and maybe URL shortening calls
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private AsyncHttpResponse buildResponse(int statusCode, String statusLine,
+                                                HttpResponseHeaders headers, byte[] responseBody) {
+            // only the logged prefix of the body is ever decoded
+            int bodyPrefixLen = responseBody.length > 300 ? 300 : responseBody.length;
+
+            if (isExpectedStatus(statusCode)) {
+                if (LogUtils.isDebugEnabled()) {
+                    LogUtils.logd(statusLine + ": " + new String(responseBody, 0, bodyPrefixLen));
+                }
+                return new AsyncHttpResponse(mConn, null, headers, responseBody);
+            } else {
+                LogUtils.loge(statusLine + "\n" + new String(responseBody, 0, bodyPrefixLen));
+                return new AsyncHttpResponse(mConn, new Exception(statusLine), headers, responseBody);
+            }
+        }
+
+        private static void invokeCallback(Handler handler, JRConnectionManager.HttpCallback callBack) {
+            if (handler != null) {
+                handler.post(callBack);
             } else {
                 callBack.run();
             }
@@ -325,4 +595,12 @@ import static com.janrain.android.engage.net.JRConnectionManager.ManagedConnecti
     public static void setCustomUserAgent(String customUserAgent) {
         USER_AGENT = customUserAgent;
     }
+
+    /*package*/ static void setUseNativeOkHttp(boolean useNativeOkHttp) {
+        sUseNativeOkHttp = useNativeOkHttp;
+    }
+
+    /*package*/ static void setTransport(Transport transport) {
+        sTransport = transport;
+    }
 }
\ No newline at end of file
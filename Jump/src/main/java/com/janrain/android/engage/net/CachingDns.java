@@ -0,0 +1,262 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.engage.net;
+
+import android.os.Handler;
+import android.os.Looper;
+import com.janrain.android.utils.LogUtils;
+import com.janrain.android.utils.ThreadUtils;
+import com.squareup.okhttp.Dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @internal
+ *
+ * @class CachingDns
+ * An in-memory DNS cache for the shared OkHttp clients. The platform resolver does not expose record TTLs, so
+ * resolved addresses are considered fresh for a fixed TTL. For a while after that a stale answer is still
+ * returned immediately while the host is re-resolved in the background, so that a request only blocks on the
+ * resolver for a host it has never (or not recently) seen. Failed lookups are cached briefly as well.
+ */
+public final class CachingDns implements Dns {
+    private static final long POSITIVE_TTL_MS = TimeUnit.SECONDS.toMillis(60);
+    private static final long STALE_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long NEGATIVE_TTL_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final CachingDns sInstance = new CachingDns(Dns.SYSTEM);
+
+    private final Dns mDelegate;
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final Set<String> mRefreshing = new HashSet<String>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // metrics, guarded by this
+    private long mLookups;
+    private long mHits;
+    private long mStaleHits;
+    private long mResolutions;
+    private long mFailures;
+    private long mTotalResolveMillis;
+    private long mMaxResolveMillis;
+
+    private CachingDns(Dns delegate) {
+        mDelegate = delegate;
+    }
+
+    /*package*/ static CachingDns getInstance() {
+        return sInstance;
+    }
+
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        if (hostname == null) throw new UnknownHostException("hostname == null");
+
+        Entry entry;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            mLookups++;
+            entry = mEntries.get(hostname);
+            if (entry != null && now < entry.mFreshUntil) {
+                mHits++;
+                if (entry.mAddresses == null) throw new UnknownHostException(hostname);
+                return entry.mAddresses;
+            }
+            if (entry != null && entry.mAddresses != null && now < entry.mStaleUntil) mStaleHits++;
+        }
+
+        if (entry != null && entry.mAddresses != null && now < entry.mStaleUntil) {
+            refreshInBackground(hostname);
+            return entry.mAddresses;
+        }
+
+        return resolve(hostname);
+    }
+
+    /**
+     * Resolves hostname on the prefetch lane and caches the result, unless a fresh answer is already cached
+     */
+    /*package*/ void preresolve(final String hostname) {
+        synchronized (this) {
+            Entry entry = mEntries.get(hostname);
+            if (entry != null && System.currentTimeMillis() < entry.mFreshUntil) return;
+        }
+
+        refreshInBackground(hostname);
+    }
+
+    private void refreshInBackground(final String hostname) {
+        synchronized (this) {
+            if (!mRefreshing.add(hostname)) return;
+        }
+
+        final Runnable refresh = new Runnable() {
+            public void run() {
+                try {
+                    resolve(hostname);
+                } catch (UnknownHostException e) {
+                    LogUtils.logd("pre-resolution failed: " + hostname);
+                } finally {
+                    synchronized (CachingDns.this) {
+                        mRefreshing.remove(hostname);
+                    }
+                }
+            }
+        };
+
+        // ThreadUtils runs work inline on threads without a Looper, like the HTTP IO threads, so hand the
+        // refresh to the main thread to be scheduled from there
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                ThreadUtils.executeInBg(refresh, ThreadUtils.Priority.PREFETCH);
+            }
+        });
+    }
+
+    private List<InetAddress> resolve(String hostname) throws UnknownHostException {
+        long start = System.currentTimeMillis();
+        List<InetAddress> addresses = null;
+        try {
+            addresses = mDelegate.lookup(hostname);
+            return addresses;
+        } finally {
+            long end = System.currentTimeMillis();
+            long elapsed = end - start;
+            NetworkMetrics.recordDns(elapsed);
+            synchronized (this) {
+                mResolutions++;
+                mTotalResolveMillis += elapsed;
+                if (elapsed > mMaxResolveMillis) mMaxResolveMillis = elapsed;
+
+                if (addresses != null) {
+                    mEntries.put(hostname, new Entry(addresses, end + POSITIVE_TTL_MS, end + STALE_TTL_MS));
+                } else {
+                    mFailures++;
+                    Entry previous = mEntries.get(hostname);
+                    // keep serving a stale answer rather than replacing it with a failure
+                    if (previous == null || previous.mAddresses == null || end >= previous.mStaleUntil) {
+                        mEntries.put(hostname, new Entry(null, end + NEGATIVE_TTL_MS, end + NEGATIVE_TTL_MS));
+                    }
+                }
+            }
+            if (LogUtils.isDebugEnabled()) {
+                LogUtils.logd("resolved " + hostname + " in " + elapsed + "ms: " + addresses);
+            }
+        }
+    }
+
+    /*package*/ synchronized Metrics getMetrics() {
+        return new Metrics(this);
+    }
+
+    private static class Entry {
+        private final List<InetAddress> mAddresses;
+        private final long mFreshUntil;
+        private final long mStaleUntil;
+
+        private Entry(List<InetAddress> addresses, long freshUntil, long staleUntil) {
+            mAddresses = addresses;
+            mFreshUntil = freshUntil;
+            mStaleUntil = staleUntil;
+        }
+    }
+
+    /**
+     * A point in time snapshot of the DNS cache's metrics
+     */
+    public static class Metrics {
+        /**
+         * The number of lookups made by the HTTP stack
+         */
+        public final long lookups;
+
+        /**
+         * The number of lookups answered with a fresh cached result
+         */
+        public final long hits;
+
+        /**
+         * The number of lookups answered with a stale cached result while the host was re-resolved
+         */
+        public final long staleHits;
+
+        /**
+         * The number of queries made to the platform resolver, including background pre-resolutions
+         */
+        public final long resolutions;
+
+        /**
+         * The number of resolver queries which failed
+         */
+        public final long failures;
+
+        /**
+         * The sum of the time spent in the platform resolver, in milliseconds
+         */
+        public final long totalResolveMillis;
+
+        /**
+         * The longest time spent in a single resolver query, in milliseconds
+         */
+        public final long maxResolveMillis;
+
+        private Metrics(CachingDns dns) {
+            lookups = dns.mLookups;
+            hits = dns.mHits;
+            staleHits = dns.mStaleHits;
+            resolutions = dns.mResolutions;
+            failures = dns.mFailures;
+            totalResolveMillis = dns.mTotalResolveMillis;
+            maxResolveMillis = dns.mMaxResolveMillis;
+        }
+
+        /**
+         * @return the mean time spent in a resolver query, in milliseconds
+         */
+        public long getAverageResolveMillis() {
+            return resolutions == 0 ? 0 : totalResolveMillis / resolutions;
+        }
+
+        public String toString() {
+            return "<DnsMetrics lookups: " + lookups + " hits: " + hits + " staleHits: " + staleHits
+                    + " resolutions: " + resolutions + " failures: " + failures + " averageResolveMillis: "
+                    + getAverageResolveMillis() + " maxResolveMillis: " + maxResolveMillis + ">";
+        }
+    }
+}
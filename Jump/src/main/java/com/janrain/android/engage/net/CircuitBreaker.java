@@ -0,0 +1,107 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.engage.net;
+
+import com.janrain.android.utils.LogUtils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @internal
+ *
+ * @class CircuitBreaker
+ * Tracks consecutive failures of the requests to one host. After FAILURE_THRESHOLD consecutive connection
+ * failures or 5xx responses the circuit opens, and requests to the host fail immediately with an
+ * OpenCircuitException instead of waiting on a server which is down. While the circuit is open a single
+ * trial request is let through every OPEN_INTERVAL_MS; the first success closes the circuit again.
+ */
+public final class CircuitBreaker {
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final Map<String, CircuitBreaker> sBreakers = new HashMap<String, CircuitBreaker>();
+
+    private final String mHost;
+    private int mConsecutiveFailures;
+    private long mOpenUntil;
+
+    private CircuitBreaker(String host) {
+        mHost = host;
+    }
+
+    /*package*/ static CircuitBreaker forHost(String host) {
+        synchronized (sBreakers) {
+            CircuitBreaker breaker = sBreakers.get(host);
+            if (breaker == null) sBreakers.put(host, breaker = new CircuitBreaker(host));
+            return breaker;
+        }
+    }
+
+    /**
+     * @return true if a request to the host may be made now, false if it should fail fast
+     */
+    /*package*/ synchronized boolean allowRequest() {
+        if (mConsecutiveFailures < FAILURE_THRESHOLD) return true;
+        long now = System.currentTimeMillis();
+        if (now < mOpenUntil) return false;
+
+        // let this one through as a trial, and hold the others off for another interval
+        mOpenUntil = now + OPEN_INTERVAL_MS;
+        return true;
+    }
+
+    /*package*/ synchronized void recordSuccess() {
+        if (mConsecutiveFailures >= FAILURE_THRESHOLD) LogUtils.logd("circuit closed for " + mHost);
+        mConsecutiveFailures = 0;
+    }
+
+    /*package*/ synchronized void recordFailure() {
+        mConsecutiveFailures++;
+        if (mConsecutiveFailures >= FAILURE_THRESHOLD) {
+            mOpenUntil = System.currentTimeMillis() + OPEN_INTERVAL_MS;
+            LogUtils.loge("circuit open for " + mHost + " after " + mConsecutiveFailures + " failures");
+        }
+    }
+
+    /**
+     * The failure delivered for a request which was not attempted because its host's circuit is open
+     */
+    public static class OpenCircuitException extends IOException {
+        /*package*/ OpenCircuitException(String host) {
+            super("Too many recent failures, not contacting " + host);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.engage.net;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Transport which serves scripted responses from memory, after a configurable latency and at a
+ * configurable bandwidth, for driving the library against a deterministic fake network, e.g. to benchmark the
+ * throughput of Capture operations.
+ *
+ * Requests are routed to Responders by method and URL path, the first matching route wins. A route's path
+ * may end with * to match any path with that prefix. Unrouted requests get a 404.
+ */
+public class InMemoryTransport implements Transport {
+    private final List<Route> mRoutes = new CopyOnWriteArrayList<Route>();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private volatile long mLatencyMillis;
+    private volatile long mBytesPerSecond;
+
+    /**
+     * Produces the response to a request
+     */
+    public interface Responder {
+        /**
+         * Called on the thread executing the request, possibly concurrently with other requests
+         *
+         * @throws IOException to fail the exchange, as if the network had
+         */
+        Response respond(Request request) throws IOException;
+    }
+
+    private static class Route {
+        final String method;
+        final String path;
+        final Responder responder;
+
+        Route(String method, String path, Responder responder) {
+            this.method = method;
+            this.path = path;
+            this.responder = responder;
+        }
+
+        boolean matches(String method, String path) {
+            if (this.method != null && !this.method.equalsIgnoreCase(method)) return false;
+            if (this.path.endsWith("*")) {
+                return path.startsWith(this.path.substring(0, this.path.length() - 1));
+            }
+            return this.path.equals(path);
+        }
+    }
+
+    /**
+     * Routes requests to a responder
+     *
+     * @param method the request method to route, or null for any
+     * @param path the URL path to route, optionally ending with a * wildcard
+     * @param responder the responder for matching requests
+     * @return this transport
+     */
+    public InMemoryTransport route(String method, String path, Responder responder) {
+        mRoutes.add(new Route(method, path, responder));
+        return this;
+    }
+
+    /**
+     * Routes requests to a fixed JSON response
+     *
+     * @return this transport
+     */
+    public InMemoryTransport route(String method, String path, final int code, final String json) {
+        return route(method, path, new Responder() {
+            public Response respond(Request request) {
+                return jsonResponse(code, json);
+            }
+        });
+    }
+
+    /**
+     * @param millis the delay before each response's headers arrive, modelling round trip time
+     */
+    public void setLatency(long millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * @param bytesPerSecond the rate at which response bodies are delivered, or 0 for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @return the number of requests this transport has executed
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return a response with the given status code and a JSON body
+     */
+    public static Response jsonResponse(int code, String json) {
+        List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new BasicNameValuePair("Content-Type", "application/json;charset=UTF-8"));
+        Buffer body = new Buffer().writeUtf8(json);
+        headers.add(new BasicNameValuePair("Content-Length", String.valueOf(body.size())));
+        return new Response("HTTP/1.1", code, code == 200 ? "OK" : "Error", headers, body);
+    }
+
+    public Call newCall(Request request) {
+        return new InMemoryCall(request);
+    }
+
+    private class InMemoryCall implements Call {
+        private final Request mRequest;
+        private boolean mCancelled;
+
+        InMemoryCall(Request request) {
+            mRequest = request;
+        }
+
+        public Response execute() throws IOException {
+            mRequestCount.incrementAndGet();
+            long latency = mLatencyMillis;
+            synchronized (this) {
+                long until = System.currentTimeMillis() + latency;
+                for (long now = System.currentTimeMillis(); now < until && !mCancelled;
+                     now = System.currentTimeMillis()) {
+                    try {
+                        wait(until - now);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                checkCancelled();
+            }
+
+            String path = URI.create(mRequest.url).getPath();
+            for (Route route : mRoutes) {
+                if (!route.matches(mRequest.method, path)) continue;
+
+                Response response = route.responder.respond(mRequest);
+                long bytesPerSecond = mBytesPerSecond;
+                BufferedSource body = Okio.buffer(new ThrottledSource(response.body, bytesPerSecond));
+                return new Response(response.protocol, response.code, response.message, response.headers,
+                        body);
+            }
+
+            return jsonResponse(404, "{\"stat\":\"error\",\"error\":\"not_found\"}");
+        }
+
+        public synchronized void cancel() {
+            mCancelled = true;
+            notifyAll();
+        }
+
+        private synchronized void checkCancelled() throws IOException {
+            if (mCancelled) throw new IOException("Canceled");
+        }
+
+        /**
+         * Delivers a body at a bounded rate, and fails reads once the call is cancelled
+         */
+        private class ThrottledSource extends ForwardingSource {
+            private final long mBytesPerSecond;
+
+            ThrottledSource(BufferedSource delegate, long bytesPerSecond) {
+                super(delegate);
+                mBytesPerSecond = bytesPerSecond;
+            }
+
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                checkCancelled();
+                if (mBytesPerSecond <= 0) return super.read(sink, byteCount);
+
+                // deliver at most a tenth of a second's worth of bytes per read
+                long chunk = Math.max(1, Math.min(byteCount, mBytesPerSecond / 10));
+                long read = super.read(sink, chunk);
+                if (read > 0) {
+                    try {
+                        Thread.sleep(read * 1000 / mBytesPerSecond);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return read;
+            }
+        }
+    }
+}
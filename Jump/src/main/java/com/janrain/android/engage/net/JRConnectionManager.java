@@ -31,10 +31,15 @@
  */
 package com.janrain.android.engage.net;
 
+import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import com.janrain.android.utils.ApacheSetFromMap;
 import com.janrain.android.utils.ThreadUtils;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
@@ -42,8 +47,11 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.entity.ByteArrayEntity;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -63,6 +71,15 @@ public class JRConnectionManager {
             Collections.synchronizedMap(
                     new WeakHashMap<JRConnectionManagerDelegate, Set<ManagedConnection>>());
 
+    private static final String RESPONSE_CACHE_DIRECTORY_NAME = "jr_http_cache";
+    private static final long RESPONSE_CACHE_MAX_SIZE_BYTES = 10 * 1024 * 1024;
+
+    private static volatile int sGzipRequestThreshold = -1;
+    private static volatile RetryPolicy sDefaultRetryPolicy = new RetryPolicy(3, 500, 8000);
+
+    // identical in-flight GETs, keyed by ManagedConnection#getSingleFlightKey
+    private static final Map<String, ManagedConnection> sInFlightGets = new HashMap<String, ManagedConnection>();
+
     private JRConnectionManager() {}
 
     public static synchronized JRConnectionManager getInstance() {
@@ -75,6 +92,10 @@ public class JRConnectionManager {
      * all IO is performed on a background thread, callbacks are posted back to the Looper thread. Otherwise
      * IO and callbacks are performed synchronously.
      *
+     * Asynchronous GETs are de-duplicated: a GET which is identical (same URL, headers and redirect policy)
+     * to one already in flight shares that request's network exchange, and its delegate receives the same
+     * response. Stopping the connections of one delegate does not affect the others sharing the request.
+     *
      * @param requestUrl
      *      The URL to be executed. May not be null.
      * @param delegate
@@ -93,10 +114,95 @@ public class JRConnectionManager {
                                         List<NameValuePair> requestHeaders,
                                         byte[] postData,
                                         boolean followRedirects) {
+        createConnection(requestUrl, delegate, tag, requestHeaders, postData, followRedirects,
+                ThreadUtils.Priority.INTERACTIVE);
+    }
+
+    /**
+     * As createConnection(String, JRConnectionManagerDelegate, Object, List, byte[], boolean), with the
+     * connection's IO scheduled in the given ThreadUtils priority lane.
+     *
+     * @param priority the lane to perform the connection's IO in, prefetches and other speculative requests
+     *                 should use ThreadUtils.Priority.PREFETCH so that they don't delay interactive requests
+     */
+    public static void createConnection(String requestUrl,
+                                        JRConnectionManagerDelegate delegate,
+                                        Object tag,
+                                        List<NameValuePair> requestHeaders,
+                                        byte[] postData,
+                                        boolean followRedirects,
+                                        ThreadUtils.Priority priority) {
+        createConnection(requestUrl, delegate, tag, requestHeaders, postData, followRedirects, priority, null);
+    }
+
+    /**
+     * As createConnection(String, JRConnectionManagerDelegate, Object, List, byte[], boolean,
+     * ThreadUtils.Priority), with the given policy for retrying transient failures.
+     *
+     * @param retryPolicy the policy to retry the request with. If null, GETs are retried with the default
+     *                    retry policy and POSTs are not retried; pass a policy for a POST only if repeating it
+     *                    is harmless.
+     */
+    public static void createConnection(String requestUrl,
+                                        JRConnectionManagerDelegate delegate,
+                                        Object tag,
+                                        List<NameValuePair> requestHeaders,
+                                        byte[] postData,
+                                        boolean followRedirects,
+                                        ThreadUtils.Priority priority,
+                                        RetryPolicy retryPolicy) {
+        createConnection(requestUrl, delegate, tag, requestHeaders, postData, followRedirects, priority,
+                retryPolicy, 0);
+    }
+
+    /**
+     * As createConnection(String, JRConnectionManagerDelegate, Object, List, byte[], boolean,
+     * ThreadUtils.Priority, RetryPolicy), with an overall deadline for the request.
+     *
+     * @param deadline the System.currentTimeMillis() time by which the request, including any retries, must
+     *                 have completed, or 0 for none. A request still outstanding at its deadline is stopped
+     *                 and fails with a RequestTimeoutException. Requests with a deadline don't share their
+     *                 network exchange with identical GETs.
+     */
+    public static void createConnection(String requestUrl,
+                                        JRConnectionManagerDelegate delegate,
+                                        Object tag,
+                                        List<NameValuePair> requestHeaders,
+                                        byte[] postData,
+                                        boolean followRedirects,
+                                        ThreadUtils.Priority priority,
+                                        RetryPolicy retryPolicy,
+                                        long deadline) {
+        createConnection(requestUrl, delegate, tag, requestHeaders, postData, followRedirects, priority,
+                retryPolicy, deadline, false);
+    }
+
+    /**
+     * As createConnection(String, JRConnectionManagerDelegate, Object, List, byte[], boolean,
+     * ThreadUtils.Priority, RetryPolicy, long), optionally compressing the POST body.
+     *
+     * @param compressBody true to send a POST body which is at least the setRequestBodyGzipThreshold size with
+     *                     Content-Encoding: gzip. Pass true only for servers known to accept gzip encoded
+     *                     request bodies.
+     */
+    public static void createConnection(String requestUrl,
+                                        JRConnectionManagerDelegate delegate,
+                                        Object tag,
+                                        List<NameValuePair> requestHeaders,
+                                        byte[] postData,
+                                        boolean followRedirects,
+                                        ThreadUtils.Priority priority,
+                                        RetryPolicy retryPolicy,
+                                        long deadline,
+                                        boolean compressBody) {
         if (requestHeaders == null) requestHeaders = new ArrayList<NameValuePair>();
 
         ManagedConnection managedConnection =
                 new ManagedConnection(delegate, tag, requestUrl, postData, requestHeaders, followRedirects);
+        managedConnection.mPriority = priority;
+        managedConnection.mRetryPolicy = retryPolicy;
+        managedConnection.mDeadline = deadline;
+        managedConnection.mCompressBody = compressBody;
 
         trackAndStartConnection(delegate, managedConnection);
     }
@@ -106,7 +212,18 @@ public class JRConnectionManager {
         HttpUriRequest request;
         if (managedConnection.mPostData != null) {
             request = new HttpPost(managedConnection.mRequestUrl);
-            ((HttpPost) request).setEntity(new ByteArrayEntity(managedConnection.mPostData));
+            byte[] wirePostData = managedConnection.mPostData;
+            int gzipThreshold = sGzipRequestThreshold;
+            if (managedConnection.mCompressBody && gzipThreshold >= 0
+                    && wirePostData.length >= gzipThreshold) {
+                byte[] gzipped = gzip(wirePostData);
+                if (gzipped.length < wirePostData.length) {
+                    wirePostData = gzipped;
+                    request.addHeader("Content-Encoding", "gzip");
+                }
+            }
+            managedConnection.mWirePostData = wirePostData;
+            ((HttpPost) request).setEntity(new ByteArrayEntity(wirePostData));
             request.addHeader("Content-Type", "application/x-www-form-urlencoded");
             request.addHeader("Content-Language", "en-US");
         } else {
@@ -132,17 +249,88 @@ public class JRConnectionManager {
         if (Looper.myLooper() != null) {
             // if we're on a Looper thread then operate asynchronously, and post a message back to the Looper
             // later
-            ThreadUtils.executeInBg(new AsyncHttpClient.HttpExecutor(new Handler(), managedConnection));
+            Handler handler = new Handler();
+            if (joinInFlightRequest(managedConnection, handler)) return;
+            ThreadUtils.executeInBg(new AsyncHttpClient.HttpExecutor(handler, managedConnection),
+                    managedConnection.mPriority);
         } else {
             // no Looper -> operate synchronously
             new AsyncHttpClient.HttpExecutor(null, managedConnection).run();
         }
     }
 
+    private static byte[] gzip(byte[] data) {
+        try {
+            Buffer gzipped = new Buffer();
+            BufferedSink sink = Okio.buffer(new GzipSink(gzipped));
+            sink.write(data);
+            sink.close();
+            return gzipped.readByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected", e);
+        }
+    }
+
+    /**
+     * Single-flight for GETs: if an identical GET is already in flight then managedConnection is attached to
+     * it as a follower, and receives the leader's response instead of making its own network exchange.
+     * Otherwise managedConnection is registered as the leader for its key.
+     *
+     * @return true if managedConnection joined an in-flight request and must not be started
+     */
+    private static boolean joinInFlightRequest(ManagedConnection managedConnection, Handler handler) {
+        if (managedConnection.mPostData != null) return false;
+        // the exchange would otherwise be bound by whichever deadline the leader happened to have
+        if (managedConnection.mDeadline != 0) return false;
+        // a stream can only be consumed once
+        if (managedConnection.mDelegate instanceof
+                JRConnectionManagerDelegate.StreamingJRConnectionManagerDelegate) return false;
+
+        String key = managedConnection.getSingleFlightKey();
+        synchronized (sInFlightGets) {
+            ManagedConnection leader = sInFlightGets.get(key);
+            if (leader == null) {
+                sInFlightGets.put(key, managedConnection);
+                return false;
+            }
+
+            managedConnection.mHandler = handler;
+            managedConnection.mLeader = leader;
+            leader.mFollowers.add(managedConnection);
+            return true;
+        }
+    }
+
+    /**
+     * Ends the single-flight for a completed leader connection
+     *
+     * @return the followers which joined the leader while it was in flight, to receive its response
+     */
+    /*package*/ static List<ManagedConnection> finishInFlightRequest(ManagedConnection leader) {
+        synchronized (sInFlightGets) {
+            if (sInFlightGets.get(leader.getSingleFlightKey()) == leader) {
+                sInFlightGets.remove(leader.getSingleFlightKey());
+            }
+            List<ManagedConnection> followers = new ArrayList<ManagedConnection>(leader.mFollowers);
+            leader.mFollowers.clear();
+            return followers;
+        }
+    }
+
+    /**
+     * Stops the connections of the given delegate. The delegate receives no further callbacks for them, and
+     * any response already received is dropped. Unless a connection's network exchange is still shared with
+     * the identical GET of another delegate, the exchange is aborted: a request still queued is never sent,
+     * and one in flight has its socket closed and its thread freed.
+     *
+     * @param delegate the delegate whose connections are stopped. Null is ignored, since the connections
+     *                 created without a delegate belong to many unrelated callers.
+     */
     public static void stopConnectionsForDelegate(JRConnectionManagerDelegate delegate) {
+        if (delegate == null) return;
         synchronized (sDelegateConnections) {
-            Set<ManagedConnection> connections = sDelegateConnections.get(delegate);
-            if (connections != null) for (ManagedConnection c : connections) c.mDelegate = null;
+            Set<ManagedConnection> connections = sDelegateConnections.remove(delegate);
+            if (connections != null) for (ManagedConnection c : connections) c.stop();
         }
     }
 
@@ -154,8 +342,24 @@ public class JRConnectionManager {
         final private boolean mFollowRedirects;
 
         private HttpUriRequest mHttpRequest;
-        private AsyncHttpClient.AsyncHttpResponse mResponse;
-        private JRConnectionManagerDelegate mDelegate;
+        private volatile AsyncHttpClient.AsyncHttpResponse mResponse;
+        private volatile JRConnectionManagerDelegate mDelegate;
+        private ThreadUtils.Priority mPriority = ThreadUtils.Priority.INTERACTIVE;
+        private RetryPolicy mRetryPolicy;
+
+        // single-flight state, guarded by sInFlightGets
+        private final List<ManagedConnection> mFollowers = new ArrayList<ManagedConnection>();
+        private Handler mHandler;
+        private ManagedConnection mLeader;
+        // set by stop(), a leader with a null delegate may just be fire-and-forget
+        private boolean mStopped;
+
+        private boolean mCompressBody;
+        private byte[] mWirePostData;
+        private long mDeadline;
+        private volatile boolean mAborted;
+        private volatile boolean mTimedOut;
+        private volatile Transport.Call mCall;
 
         public ManagedConnection(JRConnectionManagerDelegate delegate,
                                  Object tag,
@@ -174,10 +378,25 @@ public class JRConnectionManager {
             return mRequestUrl;
         }
 
+        /*package*/ Object getTag() {
+            return mTag;
+        }
+
+        /*package*/ JRConnectionManagerDelegate getDelegate() {
+            return mDelegate;
+        }
+
         /*package*/ byte[] getPostData() {
             return mPostData;
         }
 
+        /**
+         * @return the POST body as sent, which is the post data or its gzip encoding
+         */
+        /*package*/ byte[] getWirePostData() {
+            return mWirePostData;
+        }
+
         /*package*/ List<NameValuePair> getRequestHeaders() {
             return mRequestHeaders;
         }
@@ -193,6 +412,88 @@ public class JRConnectionManager {
         /*package*/ void setResponse(AsyncHttpClient.AsyncHttpResponse response) {
             mResponse = response;
         }
+
+        /*package*/ Handler getHandler() {
+            return mHandler;
+        }
+
+        /*package*/ ThreadUtils.Priority getPriority() {
+            return mPriority;
+        }
+
+        /*package*/ RetryPolicy getRetryPolicy() {
+            if (mRetryPolicy != null) return mRetryPolicy;
+            return mPostData == null ? sDefaultRetryPolicy : RetryPolicy.NO_RETRIES;
+        }
+
+        /**
+         * @return the System.currentTimeMillis() time by which the request must have completed, or 0
+         */
+        /*package*/ long getDeadline() {
+            return mDeadline;
+        }
+
+        /*package*/ boolean isTimedOut() {
+            return mTimedOut;
+        }
+
+        /**
+         * Ends the network exchange of a request which has passed its deadline. Unlike abort() the connection
+         * stays attached to its delegate, so that the delegate is told about the timeout.
+         */
+        /*package*/ void expire() {
+            mTimedOut = true;
+            if (mHttpRequest != null) mHttpRequest.abort();
+            Transport.Call call = mCall;
+            if (call != null) call.cancel();
+        }
+
+        private String getSingleFlightKey() {
+            return mRequestUrl + " " + mFollowRedirects + " " + mRequestHeaders;
+        }
+
+        /*package*/ void setCall(Transport.Call call) {
+            mCall = call;
+            // close the race with an abort() which ran before the call was published
+            if (mAborted || mTimedOut) call.cancel();
+        }
+
+        /*package*/ boolean isAborted() {
+            return mAborted;
+        }
+
+        /**
+         * Detaches this connection from its delegate, and aborts the network exchange once no other
+         * connection shares it
+         */
+        private void stop() {
+            mDelegate = null;
+            mResponse = null;
+
+            synchronized (sInFlightGets) {
+                mStopped = true;
+                if (mLeader != null) {
+                    mLeader.mFollowers.remove(this);
+                    if (mLeader.mStopped && mLeader.mFollowers.isEmpty()) mLeader.abort();
+                } else if (mFollowers.isEmpty()) {
+                    abort();
+                }
+            }
+        }
+
+        /**
+         * Must be called with sInFlightGets held
+         */
+        private void abort() {
+            // identical GETs made from now on must not join an exchange which is going away
+            String key = getSingleFlightKey();
+            if (sInFlightGets.get(key) == this) sInFlightGets.remove(key);
+
+            mAborted = true;
+            if (mHttpRequest != null) mHttpRequest.abort();
+            Transport.Call call = mCall;
+            if (call != null) call.cancel();
+        }
     }
 
     /*package*/ static class HttpCallback implements Runnable {
@@ -208,24 +509,160 @@ public class JRConnectionManager {
                 if (managedConnections != null) managedConnections.remove(mConn);
             }
 
-            if (mConn.mDelegate == null || mConn.mHttpRequest.isAborted()) return;
+            JRConnectionManagerDelegate delegate = mConn.mDelegate;
+            AsyncHttpClient.AsyncHttpResponse response = mConn.mResponse;
+            if (delegate == null || response == null || mConn.isAborted()) return;
 
-            if (mConn.mResponse.hasException()) {
-                mConn.mDelegate.connectionDidFail(mConn.mResponse.getException(),
-                        mConn.mResponse.getHeaders(),
-                        mConn.mResponse.getPayload(),
+            if (response.hasException()) {
+                delegate.connectionDidFail(response.getException(),
+                        response.getHeaders(),
+                        response.getPayload(),
                         mConn.mRequestUrl,
                         mConn.mTag);
             } else {
-                mConn.mDelegate.connectionDidFinishLoading(mConn.mResponse.getHeaders(),
-                        mConn.mResponse.getPayload(),
+                delegate.connectionDidFinishLoading(response.getHeaders(),
+                        response.getPayload(),
                         mConn.mRequestUrl,
                         mConn.mTag);
             }
         }
     }
 
+    /**
+     * Enables gzip compression of the POST bodies of connections created with compressBody set. Those bodies
+     * of at least minBytes are sent with Content-Encoding: gzip, when compressing actually makes them
+     * smaller. The saving shows in the requestBytes and requestWireBytes of getNetworkMetrics().
+     *
+     * @param minBytes the size from which bodies are compressed, or a negative number to disable compression,
+     *                 which is the default
+     */
+    public static void setRequestBodyGzipThreshold(int minBytes) {
+        sGzipRequestThreshold = minBytes;
+    }
+
+    /**
+     * Sets the retry policy used for GETs, and for POSTs declared idempotent with ApiConnection#idempotent.
+     * Defaults to three attempts, backing off from 500ms up to 8s.
+     *
+     * @param retryPolicy the new default policy, RetryPolicy.NO_RETRIES to disable retries
+     */
+    public static void setDefaultRetryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy == null) throw new IllegalArgumentException("retryPolicy cannot be null");
+        sDefaultRetryPolicy = retryPolicy;
+    }
+
+    public static RetryPolicy getDefaultRetryPolicy() {
+        return sDefaultRetryPolicy;
+    }
+
     public static void setCustomUserAgent(String customUserAgent) {
         AsyncHttpClient.setCustomUserAgent(customUserAgent + "" + System.getProperty("http.agent"));
     }
+
+    /**
+     * Enables the disk-backed HTTP response cache for GETs, e.g. the flow, provider icons, thumbnails and
+     * profile pictures. Fresh responses are then served without a network round trip, and stale ones are
+     * revalidated automatically with If-None-Match / If-Modified-Since, so that unchanged resources come back
+     * as a 304 instead of being downloaded again. Requests which set their own conditional headers, like the
+     * Engage configuration request, bypass the cache and see the 304 themselves.
+     *
+     * @param context the application context, whose cache directory holds the cache
+     */
+    public static void enableResponseCache(Context context) {
+        SharedOkHttpClient.installCache(new File(context.getCacheDir(), RESPONSE_CACHE_DIRECTORY_NAME),
+                RESPONSE_CACHE_MAX_SIZE_BYTES);
+    }
+
+    /**
+     * Resolves the given hosts on a background thread ahead of their first request, so that the request
+     * doesn't wait on the DNS resolver. Resolved addresses are kept in an in-memory cache shared by all
+     * connections. The hosts are also treated as API hosts by NetworkMetrics, which labels their requests
+     * by path.
+     *
+     * @param hosts the host names to resolve, null or empty names are ignored
+     */
+    public static void preresolveHosts(String... hosts) {
+        for (String host : hosts) {
+            if (host == null || host.length() == 0) continue;
+            NetworkMetrics.addApiHost(host);
+            CachingDns.getInstance().preresolve(host);
+        }
+    }
+
+    /**
+     * Opens connections to the given hosts on a background thread, ahead of their first request. The
+     * connections are parked in the shared connection pool, where the first real request to each host finds
+     * its TCP and TLS handshakes already done. Connections idle for longer than the pool's keep-alive
+     * duration are closed.
+     *
+     * @param hosts the host names to connect to over HTTPS, null or empty names are ignored
+     */
+    public static void preconnectHosts(String... hosts) {
+        for (final String host : hosts) {
+            if (host == null || host.length() == 0) continue;
+            NetworkMetrics.addApiHost(host);
+            ThreadUtils.executeInBg(new Runnable() {
+                public void run() {
+                    SharedOkHttpClient.preconnect(host);
+                }
+            }, ThreadUtils.Priority.PREFETCH);
+        }
+    }
+
+    /**
+     * @return a snapshot of the metrics of the requests made so far, by endpoint. Requests to the hosts
+     *         passed to preresolveHosts or preconnectHosts, i.e. the Capture, Engage and flow hosts, are
+     *         labeled by method and path template; other requests are labeled "GET other" or "POST other".
+     */
+    public static Map<String, NetworkMetrics.EndpointMetrics> getNetworkMetrics() {
+        return NetworkMetrics.snapshot();
+    }
+
+    /**
+     * Clears the aggregate metrics returned by getNetworkMetrics
+     */
+    public static void resetNetworkMetrics() {
+        NetworkMetrics.reset();
+    }
+
+    /**
+     * Registers a listener to receive the metrics of each request attempt as it completes. The listener is
+     * called on the thread which made the request, and should return quickly.
+     */
+    public static void addNetworkMetricsListener(NetworkMetrics.Listener listener) {
+        NetworkMetrics.addListener(listener);
+    }
+
+    public static void removeNetworkMetricsListener(NetworkMetrics.Listener listener) {
+        NetworkMetrics.removeListener(listener);
+    }
+
+    /**
+     * @return a snapshot of the DNS cache's hit rate and resolution time metrics
+     */
+    public static CachingDns.Metrics getDnsMetrics() {
+        return CachingDns.getInstance().getMetrics();
+    }
+
+    /**
+     * Selects the HTTP transport. By default requests are executed through the OkApacheClient bridge. When
+     * enabled, requests are built and executed as native OkHttp calls instead, which avoids converting each
+     * request and response to and from the Apache HttpClient types and lets consecutive requests to the same
+     * host share pooled keep-alive and HTTP/2 connections.
+     *
+     * @param useNativeOkHttp true to execute requests with OkHttp directly
+     */
+    public static void setUseNativeOkHttp(boolean useNativeOkHttp) {
+        AsyncHttpClient.setUseNativeOkHttp(useNativeOkHttp);
+    }
+
+    /**
+     * Installs the Transport which performs the HTTP exchanges of all connections, in place of the OkHttp
+     * clients, e.g. an InMemoryTransport for benchmarking the library without a network.
+     *
+     * @param transport the transport to use, or null to restore the default
+     */
+    public static void setTransport(Transport transport) {
+        AsyncHttpClient.setTransport(transport);
+    }
 }
@@ -32,6 +32,9 @@
 package com.janrain.android.engage.net;
 
 import com.janrain.android.engage.net.async.HttpResponseHeaders;
+import okio.BufferedSource;
+
+import java.io.IOException;
 
 /**
  * @internal
@@ -60,4 +63,30 @@ public interface JRConnectionManagerDelegate {
                                       byte[] payload, String requestUrl,
                                       Object tag) {}
     }
+
+    /**
+     * An opt-in variant of the delegate which consumes successful response bodies as a stream instead of
+     * as a byte array. The body is never copied into memory by the connection manager, so large payloads
+     * can be parsed as they arrive.
+     */
+    public interface StreamingJRConnectionManagerDelegate extends JRConnectionManagerDelegate {
+        /**
+         * Called on the background IO thread when a successful response arrives, before
+         * connectionDidFinishLoading is called on the delegate's thread with a null payload. Error responses
+         * are still delivered, buffered, to connectionDidFail.
+         *
+         * @param headers the response headers
+         * @param body the decompressed response body. It is closed after this method returns.
+         * @param requestUrl the URL of the request
+         * @param tag the tag of the connection
+         * @throws IOException if reading the body fails, the connection is then failed with this exception
+         */
+        void connectionDidReceiveBody(HttpResponseHeaders headers,
+                                      BufferedSource body,
+                                      String requestUrl,
+                                      Object tag) throws IOException;
+    }
+
+    public abstract class SimpleStreamingJRConnectionManagerDelegate extends SimpleJRConnectionManagerDelegate
+            implements StreamingJRConnectionManagerDelegate {}
 }
@@ -0,0 +1,620 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.engage.net;
+
+import android.net.Uri;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * @class NetworkMetrics
+ * Per-endpoint metrics of the library's HTTP requests. Each attempt of a request is timed in phases (see
+ * Phase), its bytes counted before and after content decoding, and its outcome counted by status code or
+ * exception type. Requests are aggregated by endpoint, which for the library's own API hosts is the request
+ * method and path template, e.g. "POST /oauth/auth_native"; requests to other hosts, like profile pictures,
+ * are aggregated as "GET other".
+ *
+ * Read a snapshot with JRConnectionManager.getNetworkMetrics(), or register a Listener with
+ * JRConnectionManager.addNetworkMetricsListener() to receive each request's metrics as it completes.
+ */
+public final class NetworkMetrics {
+    /**
+     * The phases of an HTTP exchange
+     */
+    public enum Phase {
+        /**
+         * Waiting in the ThreadUtils lane for a thread to execute the request on (or, for a retry, waiting
+         * out the backoff)
+         */
+        QUEUE,
+
+        /**
+         * Resolving the host name, zero when the DNS cache answered or a pooled connection was reused
+         */
+        DNS,
+
+        /**
+         * Opening the TCP connection, zero when a pooled connection was reused
+         */
+        CONNECT,
+
+        /**
+         * The TLS handshake, zero when a pooled connection was reused
+         */
+        TLS,
+
+        /**
+         * From sending the request to receiving the response headers, zero when served from the cache
+         */
+        TIME_TO_FIRST_BYTE,
+
+        /**
+         * Reading and decoding the response body
+         */
+        BODY,
+
+        /**
+         * The whole attempt, excluding the queue wait
+         */
+        TOTAL
+    }
+
+    /**
+     * Receives the metrics of each request attempt when it completes, on the thread which executed it
+     */
+    public interface Listener {
+        void onRequestComplete(RequestMetrics metrics);
+    }
+
+    private static final String OTHER_PATH = "other";
+    private static final String FLOW_PATH_PREFIX = "/widget_data/flows/";
+    private static final String FLOW_PATH_TEMPLATE =
+            FLOW_PATH_PREFIX + "{app}/{flow}/{version}/{locale}.json";
+    private static final Pattern ID_SEGMENT = Pattern.compile("[0-9]+|[0-9a-fA-F-]{16,}");
+
+    private static final ThreadLocal<RequestMetrics> sCurrent = new ThreadLocal<RequestMetrics>();
+    private static final Set<String> sApiHosts = Collections.synchronizedSet(new HashSet<String>());
+    private static final Map<String, Endpoint> sEndpoints = new HashMap<String, Endpoint>();
+    private static final List<Listener> sListeners = new CopyOnWriteArrayList<Listener>();
+
+    private NetworkMetrics() {}
+
+    /**
+     * Requests to API hosts are labeled by their path template, requests to any other host by "other"
+     */
+    /*package*/ static void addApiHost(String host) {
+        if (host != null) sApiHosts.add(host.toLowerCase());
+    }
+
+    /*package*/ static String endpointFor(String method, String url) {
+        Uri uri = Uri.parse(url);
+        String path = uri.getPath() == null ? "/" : uri.getPath();
+
+        if (path.startsWith(FLOW_PATH_PREFIX)) return method + " " + FLOW_PATH_TEMPLATE;
+        if (uri.getHost() == null || !sApiHosts.contains(uri.getHost().toLowerCase())) {
+            return method + " " + OTHER_PATH;
+        }
+
+        StringBuilder template = new StringBuilder(method).append(' ');
+        for (String segment : uri.getPathSegments()) {
+            template.append('/').append(ID_SEGMENT.matcher(segment).matches() ? "{id}" : segment);
+        }
+        if (uri.getPathSegments().isEmpty()) template.append('/');
+        return template.toString();
+    }
+
+    /**
+     * Starts timing an attempt on the calling thread, which then executes the request
+     */
+    /*package*/ static RequestMetrics begin(String method, String url, int attempt, long queueMillis) {
+        RequestMetrics metrics = new RequestMetrics(endpointFor(method, url), attempt, queueMillis);
+        sCurrent.set(metrics);
+        return metrics;
+    }
+
+    /**
+     * Completes the calling thread's current attempt and publishes its metrics, only the first call for an
+     * attempt has any effect
+     */
+    /*package*/ static void finish(RequestMetrics metrics) {
+        if (metrics.mFinished) return;
+        metrics.mFinished = true;
+        sCurrent.remove();
+        metrics.mTotalMillis = System.currentTimeMillis() - metrics.mStartedAt;
+
+        synchronized (sEndpoints) {
+            Endpoint endpoint = sEndpoints.get(metrics.mEndpoint);
+            if (endpoint == null) sEndpoints.put(metrics.mEndpoint, endpoint = new Endpoint());
+            endpoint.add(metrics);
+        }
+
+        for (Listener listener : sListeners) listener.onRequestComplete(metrics);
+    }
+
+    /*package*/ static void recordDns(long millis) {
+        RequestMetrics metrics = sCurrent.get();
+        if (metrics != null) metrics.mDnsMillis += millis;
+    }
+
+    private static void recordConnect(long millis) {
+        RequestMetrics metrics = sCurrent.get();
+        if (metrics != null) {
+            metrics.mConnectMillis += millis;
+            metrics.mNewConnection = true;
+        }
+    }
+
+    /*package*/ static void addListener(Listener listener) {
+        sListeners.add(listener);
+    }
+
+    /*package*/ static void removeListener(Listener listener) {
+        sListeners.remove(listener);
+    }
+
+    /*package*/ static Map<String, EndpointMetrics> snapshot() {
+        Map<String, EndpointMetrics> retval = new TreeMap<String, EndpointMetrics>();
+        synchronized (sEndpoints) {
+            for (Map.Entry<String, Endpoint> e : sEndpoints.entrySet()) {
+                retval.put(e.getKey(), new EndpointMetrics(e.getValue()));
+            }
+        }
+        return retval;
+    }
+
+    /*package*/ static void reset() {
+        synchronized (sEndpoints) {
+            sEndpoints.clear();
+        }
+    }
+
+    /**
+     * The metrics of a single attempt of a request
+     */
+    public static class RequestMetrics {
+        private final String mEndpoint;
+        private final int mAttempt;
+        private final long mQueueMillis;
+        private final long mStartedAt = System.currentTimeMillis();
+        private long mExecutingAt;
+
+        private long mDnsMillis;
+        private long mConnectMillis;
+        private long mTlsMillis;
+        private long mTimeToFirstByteMillis;
+        private long mBodyMillis;
+        private long mTotalMillis;
+        private boolean mNewConnection;
+        private boolean mFinished;
+        private long mFirstRequestSentAt;
+
+        private long mRequestBytes;
+        private long mRequestWireBytes;
+        private volatile long mResponseBytes;
+        private volatile long mResponseWireBytes;
+
+        private int mStatusCode = -1;
+        private String mError;
+
+        private RequestMetrics(String endpoint, int attempt, long queueMillis) {
+            mEndpoint = endpoint;
+            mAttempt = attempt;
+            mQueueMillis = queueMillis;
+        }
+
+        /**
+         * Marks the hand-off of the request to OkHttp, after which the connection is set up
+         */
+        /*package*/ void markExecuting() {
+            mExecutingAt = System.currentTimeMillis();
+        }
+
+        /*package*/ void setRequestBytes(long bytes, long wireBytes) {
+            mRequestBytes = bytes;
+            mRequestWireBytes = wireBytes;
+        }
+
+        /*package*/ void setBodyMillis(long millis) {
+            mBodyMillis = millis;
+        }
+
+        /**
+         * @return body, counting the decoded bytes read from it
+         */
+        /*package*/ BufferedSource countDecodedBytes(BufferedSource body) {
+            return Okio.buffer(new ForwardingSource(body) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    long read = super.read(sink, byteCount);
+                    if (read != -1) mResponseBytes += read;
+                    return read;
+                }
+            });
+        }
+
+        /*package*/ void setStatusCode(int statusCode) {
+            mStatusCode = statusCode;
+        }
+
+        /*package*/ void setError(Throwable error) {
+            mError = error.getClass().getSimpleName();
+        }
+
+        /**
+         * @return the endpoint label, method and path template, of the request
+         */
+        public String getEndpoint() {
+            return mEndpoint;
+        }
+
+        /**
+         * @return 1 for the first attempt of a request, 2 for its first retry, and so on
+         */
+        public int getAttempt() {
+            return mAttempt;
+        }
+
+        public long getMillis(Phase phase) {
+            switch (phase) {
+                case QUEUE: return mQueueMillis;
+                case DNS: return mDnsMillis;
+                case CONNECT: return mConnectMillis;
+                case TLS: return mTlsMillis;
+                case TIME_TO_FIRST_BYTE: return mTimeToFirstByteMillis;
+                case BODY: return mBodyMillis;
+                case TOTAL: return mTotalMillis;
+                default: throw new IllegalArgumentException(String.valueOf(phase));
+            }
+        }
+
+        /**
+         * @return the size of the request body as built
+         */
+        public long getRequestBytes() {
+            return mRequestBytes;
+        }
+
+        /**
+         * @return the size of the request body as sent, after any content encoding
+         */
+        public long getRequestWireBytes() {
+            return mRequestWireBytes;
+        }
+
+        /**
+         * @return the size of the response body after content decoding
+         */
+        public long getResponseBytes() {
+            return mResponseBytes;
+        }
+
+        /**
+         * @return the size of the response body as received, before content decoding
+         */
+        public long getResponseWireBytes() {
+            return mResponseWireBytes;
+        }
+
+        /**
+         * @return the HTTP status code, or -1 if no response was received
+         */
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        /**
+         * @return the simple class name of the exception the attempt failed with, or null
+         */
+        public String getError() {
+            return mError;
+        }
+
+        public String toString() {
+            return "<RequestMetrics " + mEndpoint + " attempt: " + mAttempt + " status: " + mStatusCode
+                    + " error: " + mError + " queue: " + mQueueMillis + "ms dns: " + mDnsMillis
+                    + "ms connect: " + mConnectMillis + "ms tls: " + mTlsMillis + "ms ttfb: "
+                    + mTimeToFirstByteMillis + "ms body: " + mBodyMillis + "ms total: " + mTotalMillis
+                    + "ms request: " + mRequestBytes + "/" + mRequestWireBytes + "B response: "
+                    + mResponseBytes + "/" + mResponseWireBytes + "B>";
+        }
+    }
+
+    /**
+     * A snapshot of the latency distribution of one phase, in milliseconds. Bucket i counts the samples no
+     * greater than getBucketBounds()[i] and greater than the previous bound, the last bucket counts the
+     * samples greater than every bound.
+     */
+    public static class Histogram {
+        private static final long[] BUCKET_BOUNDS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSumMillis;
+        private final long mMaxMillis;
+
+        private Histogram(long[] counts, long count, long sumMillis, long maxMillis) {
+            mCounts = counts;
+            mCount = count;
+            mSumMillis = sumMillis;
+            mMaxMillis = maxMillis;
+        }
+
+        private static int bucketFor(long millis) {
+            int i = Arrays.binarySearch(BUCKET_BOUNDS, millis);
+            return i >= 0 ? i : -i - 1;
+        }
+
+        public long[] getBucketBounds() {
+            return BUCKET_BOUNDS.clone();
+        }
+
+        public long[] getCounts() {
+            return mCounts.clone();
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSumMillis() {
+            return mSumMillis;
+        }
+
+        public long getMaxMillis() {
+            return mMaxMillis;
+        }
+
+        /**
+         * @param quantile e.g. 0.95
+         * @return the upper bound of the bucket containing the quantile, or getMaxMillis() for the last
+         *         bucket
+         */
+        public long getQuantileUpperBoundMillis(double quantile) {
+            long rank = (long) Math.ceil(quantile * mCount);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) return Math.min(BUCKET_BOUNDS[i], mMaxMillis);
+            }
+            return mMaxMillis;
+        }
+
+        public String toString() {
+            return "<Histogram count: " + mCount + " mean: " + (mCount == 0 ? 0 : mSumMillis / mCount)
+                    + "ms p95 <= " + getQuantileUpperBoundMillis(0.95) + "ms max: " + mMaxMillis + "ms>";
+        }
+    }
+
+    /**
+     * A snapshot of the aggregate metrics of one endpoint
+     */
+    public static class EndpointMetrics {
+        public final long attempts;
+        public final long requestBytes;
+        public final long requestWireBytes;
+        public final long responseBytes;
+        public final long responseWireBytes;
+        /**
+         * Attempts by HTTP status code
+         */
+        public final Map<Integer, Long> statusCounts;
+        /**
+         * Failed attempts which received no response, by exception class name
+         */
+        public final Map<String, Long> errorCounts;
+        private final Map<Phase, Histogram> mHistograms = new EnumMap<Phase, Histogram>(Phase.class);
+
+        private EndpointMetrics(Endpoint endpoint) {
+            attempts = endpoint.mAttempts;
+            requestBytes = endpoint.mRequestBytes;
+            requestWireBytes = endpoint.mRequestWireBytes;
+            responseBytes = endpoint.mResponseBytes;
+            responseWireBytes = endpoint.mResponseWireBytes;
+            statusCounts = Collections.unmodifiableMap(new TreeMap<Integer, Long>(endpoint.mStatusCounts));
+            errorCounts = Collections.unmodifiableMap(new TreeMap<String, Long>(endpoint.mErrorCounts));
+            for (Phase phase : Phase.values()) {
+                int i = phase.ordinal();
+                mHistograms.put(phase, new Histogram(endpoint.mBuckets[i].clone(), endpoint.mCounts[i],
+                        endpoint.mSums[i], endpoint.mMaxes[i]));
+            }
+        }
+
+        public Histogram getHistogram(Phase phase) {
+            return mHistograms.get(phase);
+        }
+
+        public String toString() {
+            return "<EndpointMetrics attempts: " + attempts + " status: " + statusCounts + " errors: "
+                    + errorCounts + " request: " + requestBytes + "/" + requestWireBytes + "B response: "
+                    + responseBytes + "/" + responseWireBytes + "B " + mHistograms + ">";
+        }
+    }
+
+    // aggregate state of one endpoint, guarded by sEndpoints
+    private static class Endpoint {
+        private final int mPhases = Phase.values().length;
+        private final long[][] mBuckets = new long[mPhases][Histogram.BUCKET_BOUNDS.length + 1];
+        private final long[] mCounts = new long[mPhases];
+        private final long[] mSums = new long[mPhases];
+        private final long[] mMaxes = new long[mPhases];
+        private final Map<Integer, Long> mStatusCounts = new HashMap<Integer, Long>();
+        private final Map<String, Long> mErrorCounts = new HashMap<String, Long>();
+        private long mAttempts;
+        private long mRequestBytes;
+        private long mRequestWireBytes;
+        private long mResponseBytes;
+        private long mResponseWireBytes;
+
+        private void add(RequestMetrics metrics) {
+            mAttempts++;
+            mRequestBytes += metrics.mRequestBytes;
+            mRequestWireBytes += metrics.mRequestWireBytes;
+            mResponseBytes += metrics.mResponseBytes;
+            mResponseWireBytes += metrics.mResponseWireBytes;
+            if (metrics.mStatusCode != -1) increment(mStatusCounts, metrics.mStatusCode);
+            if (metrics.mError != null) increment(mErrorCounts, metrics.mError);
+
+            for (Phase phase : Phase.values()) {
+                int i = phase.ordinal();
+                long millis = metrics.getMillis(phase);
+                mBuckets[i][Histogram.bucketFor(millis)]++;
+                mCounts[i]++;
+                mSums[i] += millis;
+                if (millis > mMaxes[i]) mMaxes[i] = millis;
+            }
+        }
+
+        private static <K> void increment(Map<K, Long> counts, K key) {
+            Long count = counts.get(key);
+            counts.put(key, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Network interceptor for the shared OkHttp clients. Runs once the connection for an exchange is
+     * established, so the time before it, less DNS and TCP connect, is the TLS handshake. Counts the response
+     * body as received, before OkHttp's transparent gzip decoding.
+     */
+    /*package*/ static class MetricsInterceptor implements Interceptor {
+        public Response intercept(Chain chain) throws IOException {
+            final RequestMetrics metrics = sCurrent.get();
+            if (metrics == null) return chain.proceed(chain.request());
+
+            long sentAt = System.currentTimeMillis();
+            if (metrics.mFirstRequestSentAt == 0) {
+                metrics.mFirstRequestSentAt = sentAt;
+                if (metrics.mNewConnection && chain.request().isHttps()) {
+                    long setup = sentAt - metrics.mExecutingAt - metrics.mDnsMillis - metrics.mConnectMillis;
+                    metrics.mTlsMillis = Math.max(0, setup);
+                }
+            }
+
+            Response response = chain.proceed(chain.request());
+            metrics.mTimeToFirstByteMillis = System.currentTimeMillis() - metrics.mFirstRequestSentAt;
+
+            final ResponseBody body = response.body();
+            if (body == null) return response;
+            final BufferedSource counted = Okio.buffer(new ForwardingSource(body.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    long read = super.read(sink, byteCount);
+                    if (read != -1) metrics.mResponseWireBytes += read;
+                    return read;
+                }
+            });
+            return response.newBuilder().body(new ResponseBody() {
+                @Override
+                public MediaType contentType() {
+                    return body.contentType();
+                }
+
+                @Override
+                public long contentLength() throws IOException {
+                    return body.contentLength();
+                }
+
+                @Override
+                public BufferedSource source() throws IOException {
+                    return counted;
+                }
+            }).build();
+        }
+    }
+
+    /**
+     * Creates unconnected sockets which time their TCP connect, for the shared OkHttp clients
+     */
+    /*package*/ static class TimingSocketFactory extends SocketFactory {
+        private final SocketFactory mDelegate = SocketFactory.getDefault();
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return new Socket() {
+                @Override
+                public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                    long start = System.currentTimeMillis();
+                    try {
+                        super.connect(endpoint, timeout);
+                    } finally {
+                        recordConnect(System.currentTimeMillis() - start);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return mDelegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return mDelegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
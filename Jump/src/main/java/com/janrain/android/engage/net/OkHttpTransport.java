@@ -0,0 +1,100 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.engage.net;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.RequestBody;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The default Transport, which performs exchanges on the shared OkHttp clients, with their pooled and
+ * multiplexed connections, DNS cache, response cache and network metrics.
+ */
+public class OkHttpTransport implements Transport {
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+
+    public Call newCall(Request request) {
+        com.squareup.okhttp.Request.Builder builder =
+                new com.squareup.okhttp.Request.Builder().url(request.url);
+        String contentType = null;
+        for (NameValuePair header : request.headers) {
+            // OkHttp derives the Content-Type from the RequestBody
+            if (header.getName().equalsIgnoreCase(HEADER_CONTENT_TYPE)) {
+                contentType = header.getValue();
+                continue;
+            }
+            builder.addHeader(header.getName(), header.getValue());
+        }
+        if (request.body != null) {
+            MediaType mediaType = contentType == null ? null : MediaType.parse(contentType);
+            builder.method(request.method, RequestBody.create(mediaType, request.body));
+        } else {
+            builder.method(request.method, null);
+        }
+
+        OkHttpClient client = SharedOkHttpClient.get(request.followRedirects);
+        return new OkHttpCall(client.newCall(builder.build()));
+    }
+
+    private static class OkHttpCall implements Call {
+        private final com.squareup.okhttp.Call mCall;
+
+        OkHttpCall(com.squareup.okhttp.Call call) {
+            mCall = call;
+        }
+
+        public Response execute() throws IOException {
+            com.squareup.okhttp.Response response = mCall.execute();
+
+            Headers okHeaders = response.headers();
+            List<NameValuePair> headers = new ArrayList<NameValuePair>(okHeaders.size());
+            for (int i = 0; i < okHeaders.size(); i++) {
+                headers.add(new BasicNameValuePair(okHeaders.name(i), okHeaders.value(i)));
+            }
+
+            return new Response(response.protocol().toString().toUpperCase(), response.code(),
+                    response.message(), headers, response.body().source());
+        }
+
+        public void cancel() {
+            mCall.cancel();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.engage.net;
+
+import java.util.Random;
+
+/**
+ * @class RetryPolicy
+ * Decides how many times, and how long apart, a failed idempotent request is retried. A request is retried
+ * after a connection failure, or after a 408, 429, 500, 502, 503 or 504 response. The delay before each retry
+ * grows exponentially from the initial backoff up to the maximum backoff, with random jitter so that clients
+ * which failed together don't retry together. A Retry-After sent by the server is honored instead, unless it
+ * asks for a longer wait than the maximum backoff, in which case the failure is delivered immediately.
+ *
+ * Requests are only retried when it is safe to repeat them: GETs by default, and POSTs which their caller
+ * has declared idempotent.
+ */
+public class RetryPolicy {
+    /**
+     * A policy which never retries
+     */
+    public static final RetryPolicy NO_RETRIES = new RetryPolicy(1, 0, 0);
+
+    private static final Random sRandom = new Random();
+
+    private final int mMaxAttempts;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+
+    /**
+     * @param maxAttempts the total number of attempts, including the first, at least 1
+     * @param initialBackoffMillis the delay before the first retry
+     * @param maxBackoffMillis the longest delay before any retry, and the longest Retry-After honored
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be at least 1");
+        if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException("bad backoff interval");
+        }
+
+        mMaxAttempts = maxAttempts;
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    public long getInitialBackoffMillis() {
+        return mInitialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return mMaxBackoffMillis;
+    }
+
+    /*package*/ static boolean isRetryableStatus(int statusCode) {
+        switch (statusCode) {
+            case 408: // Request Timeout
+            case 429: // Too Many Requests
+            case 500: // Internal Server Error
+            case 502: // Bad Gateway
+            case 503: // Service Unavailable
+            case 504: // Gateway Timeout
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param failedAttempts the number of attempts made so far
+     * @param retryAfterMillis the delay the server asked for with Retry-After, or -1 if it didn't
+     * @return the delay before the next attempt, or -1 if the request should not be retried
+     */
+    /*package*/ long getRetryDelayMillis(int failedAttempts, long retryAfterMillis) {
+        if (failedAttempts >= mMaxAttempts) return -1;
+
+        if (retryAfterMillis >= 0) return retryAfterMillis > mMaxBackoffMillis ? -1 : retryAfterMillis;
+
+        // the shift is capped so that it can't overflow, by then the ceiling is mMaxBackoffMillis anyway
+        long ceiling = Math.min(mMaxBackoffMillis, mInitialBackoffMillis << Math.min(failedAttempts - 1, 30));
+
+        // "equal jitter": somewhere in the upper half of the current backoff interval
+        long half = ceiling / 2;
+        synchronized (sRandom) {
+            return half + (long) (sRandom.nextDouble() * (ceiling - half));
+        }
+    }
+
+    public String toString() {
+        return "<RetryPolicy maxAttempts: " + mMaxAttempts + " initialBackoffMillis: " + mInitialBackoffMillis
+                + " maxBackoffMillis: " + mMaxBackoffMillis + ">";
+    }
+}
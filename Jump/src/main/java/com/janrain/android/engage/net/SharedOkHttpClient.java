@@ -0,0 +1,131 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.engage.net;
+
+import com.janrain.android.utils.LogUtils;
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @internal
+ *
+ * @class SharedOkHttpClient
+ * Holds the OkHttpClient instances used by AsyncHttpClient. Every client handed out by this class shares a
+ * single ConnectionPool, which keys its keep-alive (and HTTP/2 multiplexed) connections by host, so requests
+ * to rpxnow, the Capture domain and the flow CDN each reuse a warm connection to their own host regardless
+ * of which transport mode or redirect policy issued them.
+ *
+ * Host names are resolved through the in-memory CachingDns, and every exchange is timed for NetworkMetrics.
+ * Once installed, the clients likewise share a single disk-backed response Cache.
+ */
+/*package*/ final class SharedOkHttpClient {
+    private static final int CONNECT_TIMEOUT_SECONDS = 30;
+    // bounds on a single stalled socket read or write, requests can also have an overall deadline
+    private static final int READ_TIMEOUT_SECONDS = 30;
+    private static final int WRITE_TIMEOUT_SECONDS = 30;
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_DURATION_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final ConnectionPool sConnectionPool =
+            new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MS);
+    private static final NetworkMetrics.TimingSocketFactory sSocketFactory =
+            new NetworkMetrics.TimingSocketFactory();
+    private static final NetworkMetrics.MetricsInterceptor sMetricsInterceptor =
+            new NetworkMetrics.MetricsInterceptor();
+    private static final OkHttpClient sClient = newClient(false);
+    private static final OkHttpClient sRedirectingClient = newClient(true);
+    private static Cache sCache;
+
+    private SharedOkHttpClient() {}
+
+    private static OkHttpClient newClient(boolean followRedirects) {
+        OkHttpClient client = new OkHttpClient();
+        client.setConnectionPool(sConnectionPool);
+        client.setDns(CachingDns.getInstance());
+        client.setSocketFactory(sSocketFactory);
+        client.networkInterceptors().add(sMetricsInterceptor);
+        client.setConnectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        client.setReadTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        client.setWriteTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        client.setFollowRedirects(followRedirects);
+        client.setFollowSslRedirects(followRedirects);
+        return client;
+    }
+
+    /**
+     * Installs a size-bounded disk cache for GET responses on the shared clients. Cached responses are served
+     * according to their Cache-Control headers, and stale responses carrying an ETag or Last-Modified header
+     * are revalidated with a conditional request. Only the first call has any effect.
+     *
+     * @param directory the directory to keep the cache in, private to this library
+     * @param maxSizeBytes the size above which the least recently used responses are evicted
+     */
+    /*package*/ static synchronized void installCache(File directory, long maxSizeBytes) {
+        if (sCache != null) return;
+
+        sCache = new Cache(directory, maxSizeBytes);
+        sClient.setCache(sCache);
+        sRedirectingClient.setCache(sCache);
+    }
+
+    /**
+     * Makes a HEAD request to the root of host, leaving the connection it was made on idle in the pool
+     *
+     * @param host the host to connect to over HTTPS
+     */
+    /*package*/ static void preconnect(String host) {
+        Request request = new Request.Builder().url("https://" + host + "/").head().build();
+        try {
+            Response response = sClient.newCall(request).execute();
+            response.body().close();
+            LogUtils.logd("preconnected to " + host + " (" + response.protocol() + ")");
+        } catch (IOException e) {
+            LogUtils.logd("preconnect to " + host + " failed: " + e);
+        }
+    }
+
+    /**
+     * @param followRedirects true to get the client which follows HTTP redirects
+     * @return the shared client for the given redirect policy
+     */
+    /*package*/ static OkHttpClient get(boolean followRedirects) {
+        return followRedirects ? sRedirectingClient : sClient;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.engage.net;
+
+import okio.BufferedSource;
+import org.apache.http.NameValuePair;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The network layer beneath JRConnectionManager, which performs single HTTP exchanges. Everything above it,
+ * request construction, retries, circuit breaking, deadlines, metrics, decompression and delivery to the
+ * delegate, is the same for every transport.
+ *
+ * The default transport is OkHttpTransport. Install another with JRConnectionManager.setTransport, e.g. an
+ * InMemoryTransport to drive the library against a deterministic fake network.
+ */
+public interface Transport {
+    /**
+     * Prepares an exchange. Called on the thread which will execute it.
+     *
+     * @param request the request to send
+     * @return the call which will perform the exchange
+     */
+    Call newCall(Request request);
+
+    /**
+     * A single HTTP exchange
+     */
+    interface Call {
+        /**
+         * Performs the exchange, blocking until the response headers have been received
+         *
+         * @return the response, whose body the caller will read and close
+         * @throws IOException if the exchange fails, or is cancelled
+         */
+        Response execute() throws IOException;
+
+        /**
+         * Cancels the exchange, from any thread. A blocked execute(), or a read of the response body, should
+         * promptly fail with an IOException.
+         */
+        void cancel();
+    }
+
+    /**
+     * An HTTP request
+     */
+    final class Request {
+        public final String method;
+        public final String url;
+        public final List<NameValuePair> headers;
+
+        /**
+         * The request body as sent, gzip encoded if the headers include Content-Encoding: gzip. Null for a
+         * GET.
+         */
+        public final byte[] body;
+        public final boolean followRedirects;
+
+        public Request(String method, String url, List<NameValuePair> headers, byte[] body,
+                       boolean followRedirects) {
+            this.method = method;
+            this.url = url;
+            this.headers = Collections.unmodifiableList(new ArrayList<NameValuePair>(headers));
+            this.body = body;
+            this.followRedirects = followRedirects;
+        }
+
+        /**
+         * @return the value of the first header named name, case insensitively, or null
+         */
+        public String header(String name) {
+            for (NameValuePair header : headers) {
+                if (header.getName().equalsIgnoreCase(name)) return header.getValue();
+            }
+            return null;
+        }
+
+        public String toString() {
+            return method + " " + url;
+        }
+    }
+
+    /**
+     * An HTTP response
+     */
+    final class Response {
+        public final String protocol;
+        public final int code;
+        public final String message;
+        public final List<NameValuePair> headers;
+
+        /**
+         * The response body as received, still gzip encoded if the headers include Content-Encoding: gzip
+         */
+        public final BufferedSource body;
+
+        public Response(String protocol, int code, String message, List<NameValuePair> headers,
+                        BufferedSource body) {
+            this.protocol = protocol;
+            this.code = code;
+            this.message = message;
+            this.headers = Collections.unmodifiableList(new ArrayList<NameValuePair>(headers));
+            this.body = body;
+        }
+
+        /**
+         * @return the value of the first header named name, case insensitively, or null
+         */
+        public String header(String name) {
+            for (NameValuePair header : headers) {
+                if (header.getName().equalsIgnoreCase(name)) return header.getValue();
+            }
+            return null;
+        }
+
+        public String getStatusLine() {
+            return protocol + " " + code + " " + message;
+        }
+    }
+}
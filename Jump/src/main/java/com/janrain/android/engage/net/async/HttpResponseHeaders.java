@@ -35,19 +35,25 @@ package com.janrain.android.engage.net.async;
 
 import com.janrain.android.engage.types.JRDictionary;
 import com.janrain.android.utils.LogUtils;
+import com.janrain.android.engage.net.Transport;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.cookie.CookieOrigin;
 import org.apache.http.cookie.CookieSpec;
 import org.apache.http.cookie.MalformedCookieException;
 import org.apache.http.impl.cookie.BestMatchSpec;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * @class HttpResponseHeaders
@@ -60,6 +66,7 @@ public class HttpResponseHeaders {
     public static final String HEADER_CONTENT_ENCODING = "content-encoding";
     public static final String HEADER_CONTENT_TYPE = "content-type";
     public static final String HEADER_CONTENT_LENGTH = "content-length";
+    public static final String HEADER_RETRY_AFTER = "Retry-After";
     public static final int RESPONSE_CODE_INVALID = -1;
 
     private int mResponseCode;
@@ -112,6 +119,31 @@ public class HttpResponseHeaders {
         return headers;
     }
 
+    /**
+     * @internal
+     * Constructs a new HttpResponseHeaders instance from a Transport Response. The headers are copied into an
+     * Apache HttpResponse so that the accessors which expose Apache types keep working.
+     * @param response
+     *   The Transport Response from which to copy the status and header values
+     * @param request
+     *   The HttpRequest from which to use the host, port, path, and secureness to construct the Cookies
+     *   parsed from the response.
+     * @return
+     *   The new instance
+     */
+    public static HttpResponseHeaders fromTransportResponse(Transport.Response response,
+                                                            HttpUriRequest request) {
+        BasicHttpResponse apacheResponse = new BasicHttpResponse(
+                new BasicStatusLine(HttpVersion.HTTP_1_1, response.code, response.message));
+        for (NameValuePair header : response.headers) {
+            apacheResponse.addHeader(header.getName(), header.getValue());
+        }
+
+        HttpResponseHeaders headers = fromResponse(apacheResponse, request);
+        headers.mStatusLine = response.getStatusLine();
+        return headers;
+    }
+
     private static String getResponseHeaderFirstValue(HttpResponse response, String headerName) {
         Header[] h = response.getHeaders(headerName);
         if (h.length > 0) return h[0].getValue();
@@ -143,6 +175,29 @@ public class HttpResponseHeaders {
         return getResponseHeaderFirstValue(mResponse, headerFieldName);
     }
 
+    /**
+     * Returns the delay requested by the Retry-After header field, which may be given either in seconds or
+     * as an HTTP date.
+     * @return
+     *  The delay in milliseconds, or -1 if the header field is absent or unparseable
+     */
+    public long getRetryAfterMillis() {
+        String retryAfter = getHeaderField(HEADER_RETRY_AFTER);
+        if (retryAfter == null) return -1;
+
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException ignore) {
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        try {
+            return Math.max(0, format.parse(retryAfter).getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
     /**
      * Returns an array of Apache HttpClient Cookies found in this HttpResponseHeaders, parsed with the
      * Apache BestMatchSpec implementation.
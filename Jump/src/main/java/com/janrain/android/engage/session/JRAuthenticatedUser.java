@@ -140,7 +140,7 @@ public class JRAuthenticatedUser implements Serializable {
             public void run() {
                 profilePicBackgroundThread(uiThread, callback);
             }
-        });
+        }, ThreadUtils.Priority.PREFETCH);
     }
 
     private void profilePicBackgroundThread(final Handler uiThread,
@@ -204,7 +204,7 @@ public class JRAuthenticatedUser implements Serializable {
                                 }
                             }
                         }
-                    }, null, null, null, true);
+                    }, null, null, null, true, ThreadUtils.Priority.PREFETCH);
         }
     }
 
@@ -217,7 +217,7 @@ public class JRAuthenticatedUser implements Serializable {
                 } catch (ProfilePicMissingException ignore) {
                 }
             }
-        });
+        }, ThreadUtils.Priority.BACKGROUND_IO);
     }
 
     public interface ProfilePicAvailableListener {
@@ -408,7 +408,7 @@ public class JRProvider implements Serializable {
                 }
                 mCurrentlyDownloading = false;
             }
-        });
+        }, ThreadUtils.Priority.PREFETCH);
     }
 
     public void loadDynamicVariables() {
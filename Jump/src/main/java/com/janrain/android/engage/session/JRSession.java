@@ -88,7 +88,8 @@ public class JRSession implements JRConnectionManagerDelegate {
     private static final String ARCHIVE_AUTH_USERS_BY_PROVIDER = "jrAuthenticatedUsersByProvider";
     private static final String ARCHIVE_AUTH_OPENID_APPAUTH_PROVIDERS = "jrAuthenticatedOpenIDAppAuthProviders";
 
-    private static final String RPXNOW_BASE_URL = "https://rpxnow.com";
+    public static final String RPXNOW_HOST = "rpxnow.com";
+    private static final String RPXNOW_BASE_URL = "https://" + RPXNOW_HOST;
     private static String mEngageBaseUrl = RPXNOW_BASE_URL;
     private static final String UNFORMATTED_CONFIG_URL =
             "%s/openid/mobile_config_and_baseurl?appId=%s&device=android&app_name=%s&version=%s";
@@ -37,6 +37,8 @@ import android.text.TextUtils;
 import com.janrain.android.engage.net.JRConnectionManager;
 import com.janrain.android.engage.net.JRConnectionManagerDelegate;
 import com.janrain.android.engage.net.async.HttpResponseHeaders;
+import com.janrain.android.utils.ThreadUtils;
+import okio.BufferedSource;
 
 import java.io.Serializable;
 
@@ -67,18 +69,28 @@ public abstract class JRMediaObject implements Serializable, JRJsonifiable {
 
         if (!TextUtils.isEmpty(getThumbnail())) {
             JRConnectionManager.createConnection(getThumbnail(),
-                    new JRConnectionManagerDelegate.SimpleJRConnectionManagerDelegate() {
+                    new JRConnectionManagerDelegate.SimpleStreamingJRConnectionManagerDelegate() {
+                        private volatile Bitmap mDecodedBitmap;
+
+                        public void connectionDidReceiveBody(HttpResponseHeaders headers,
+                                                             BufferedSource body,
+                                                             String requestUrl,
+                                                             Object tag) {
+                            // decoded straight from the socket, on the IO thread
+                            mDecodedBitmap = BitmapFactory.decodeStream(body.inputStream());
+                        }
+
                         @Override
                         public void connectionDidFinishLoading(HttpResponseHeaders headers,
                                                                byte[] payload,
                                                                String requestUrl,
                                                                Object tag) {
-                            Bitmap bitmap = BitmapFactory.decodeByteArray(payload, 0, payload.length);
+                            Bitmap bitmap = mDecodedBitmap;
                             mThumbnailBitmap = bitmap;
 
                             if (bitmap != null) tal.onThumbnailAvailable(bitmap);
                         }
-                    }, null, null, null, false);
+                    }, null, null, null, false, ThreadUtils.Priority.PREFETCH);
         }
     }
 
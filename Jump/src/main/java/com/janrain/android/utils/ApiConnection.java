@@ -32,18 +32,26 @@
 
 package com.janrain.android.utils;
 
+import android.os.Looper;
 import android.util.Pair;
 import com.janrain.android.engage.net.JRConnectionManager;
 import com.janrain.android.engage.net.JRConnectionManagerDelegate;
+import com.janrain.android.engage.net.RequestTimeoutException;
+import com.janrain.android.engage.net.RetryPolicy;
 import com.janrain.android.engage.net.async.HttpResponseHeaders;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static android.text.TextUtils.join;
 import static com.janrain.android.utils.AndroidUtils.urlEncode;
@@ -53,7 +61,14 @@ public class ApiConnection {
     private final String url;
     private  Set<Pair<String,String>> params = new HashSet<Pair<String, String>>();
     public Method method = Method.POST;
-    private JRConnectionManagerDelegate connectionManagerDelegate;
+    public ThreadUtils.Priority priority = ThreadUtils.Priority.INTERACTIVE;
+    // set for POSTs which can safely be repeated, so that they are retried after transient failures like GETs
+    public boolean idempotent;
+    // the System.currentTimeMillis() time by which the request must have completed, or 0 for no deadline
+    public long deadline;
+    // set for servers which accept gzip encoded request bodies, to compress large POST bodies
+    public boolean compressBody;
+    private volatile JRConnectionManagerDelegate connectionManagerDelegate;
 
     public ApiConnection(String url) {
         this.url = url;
@@ -85,8 +100,10 @@ public class ApiConnection {
             if (headers.getContentType().toLowerCase().startsWith("application/json")) {
                 return new JSONTokener(json).nextValue();
             }
-            LogUtils.logd("unrecognized content type: " + headers.getContentType());
-            LogUtils.logd(json);
+            if (LogUtils.isDebugEnabled()) {
+                LogUtils.logd("unrecognized content type: " + headers.getContentType());
+                LogUtils.logd(json);
+            }
             return json;
         } catch (NullPointerException ignore) {
             return json;
@@ -98,8 +115,17 @@ public class ApiConnection {
         }
     }
 
+    /**
+     * Sets this connection's deadline to timeout from now
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+    }
+
     public void stopConnection() {
-        JRConnectionManager.stopConnectionsForDelegate(connectionManagerDelegate);
+        // the delegate is this connection's own, one which was never started has none
+        JRConnectionManagerDelegate delegate = connectionManagerDelegate;
+        if (delegate != null) JRConnectionManager.stopConnectionsForDelegate(delegate);
     }
 
     public void maybeAddParam(String key, String value) {
@@ -142,6 +168,10 @@ public class ApiConnection {
                                                   byte[] payload,
                                                   String requestUrl,
                                                   Object tag) {
+                        if (ex instanceof RequestTimeoutException) {
+                            callback.run(ex);
+                            return;
+                        }
                         int responseCode = responseHeaders == null ? -1 : responseHeaders.getResponseCode();
                         LogUtils.loge("failed request (" + responseCode + "): " + requestUrl, ex);
                         Object response = connectionManagerGetJsonContent(responseHeaders, payload);
@@ -149,15 +179,20 @@ public class ApiConnection {
                     }
                 };
 
+        // set before starting the connection, which completes synchronously on threads without a Looper, so
+        // that another thread can stop it
+        connectionManagerDelegate = connectionCallback;
+
         if (method == Method.POST) {
             byte[] postData = paramsGetBytes(params);
-            JRConnectionManager.createConnection(url, connectionCallback, null, null, postData, false);
+            RetryPolicy retryPolicy = idempotent ? JRConnectionManager.getDefaultRetryPolicy() : null;
+            JRConnectionManager.createConnection(url, connectionCallback, null, null, postData, false,
+                    priority, retryPolicy, deadline, compressBody);
         } else {
             String urlWithParams = url + "?" + paramsToString(params);
-            JRConnectionManager.createConnection(urlWithParams, connectionCallback, null, null, null, false);
+            JRConnectionManager.createConnection(urlWithParams, connectionCallback, null, null, null, false,
+                    priority, null, deadline);
         }
-
-        connectionManagerDelegate = connectionCallback;
     }
 
     public void fetchResponseAsJson(final FetchJsonCallback callback) {
@@ -173,6 +208,104 @@ public class ApiConnection {
         });
     }
 
+    /**
+     * Like fetchResponseAsJson, but returns the response as a future. The future fails with a JSONException
+     * if the response isn't a JSON object, and cancelling it stops the connection.
+     */
+    public ApiFuture<JSONObject> fetchResponseAsJsonFuture() {
+        final ApiFuture<JSONObject> future = new ApiFuture<JSONObject>();
+        fetchResponseAsJson(new FetchJsonCallback() {
+            public void run(JSONObject jsonObject) {
+                if (jsonObject == null) {
+                    future.fail(new JSONException("bad response from " + url));
+                } else {
+                    future.complete(jsonObject);
+                }
+            }
+        });
+        future.onCancel(new Runnable() {
+            public void run() {
+                stopConnection();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Performs connections in parallel and waits for their responses. Intended for threads without a Looper,
+     * e.g. sync jobs and JVM-side tools, on which fetchResponseMaybeJson runs each connection synchronously.
+     * The connections are run in their priority lanes on the ThreadUtils pool, so a caller which is itself
+     * running on the pool should pass a timeout, in case its lane has no thread free for them.
+     *
+     * Must not be called on the UI thread.
+     *
+     * @param connections the connections to perform
+     * @param timeout the longest time to wait for all of the responses
+     * @param unit the unit of timeout
+     * A connection stopped just as it starts may miss being aborted, so each connection's deadline is also
+     * brought forward to the end of the timeout, if it's later.
+     *
+     * @return the responses, as passed to FetchCallback.run, in the order of connections. The responses of
+     *         connections which didn't finish within the timeout are null, and those connections are stopped.
+     * @throws InterruptedException if the calling thread is interrupted while waiting, the connections are
+     *         stopped
+     */
+    public static List<Object> executeAll(List<? extends ApiConnection> connections, long timeout,
+                                          TimeUnit unit) throws InterruptedException {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("executeAll must not be called on the UI thread");
+        }
+
+        final int count = connections.size();
+        final Object[] responses = new Object[count];
+        // guarded by responses
+        final boolean[] started = new boolean[count];
+        final boolean[] finished = new boolean[count];
+        final CountDownLatch latch = new CountDownLatch(count);
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final ApiConnection connection = connections.get(i);
+            if (connection.deadline == 0 || connection.deadline > deadline) connection.deadline = deadline;
+            ThreadUtils.executeInPool(new Runnable() {
+                public void run() {
+                    // skip connections which were still queued when the wait ended, the check and the start
+                    // are made under one lock so that the wait can't end between them unnoticed
+                    synchronized (responses) {
+                        if (finished[index]) return;
+                        started[index] = true;
+                    }
+
+                    connection.fetchResponseMaybeJson(new FetchCallback() {
+                        public void run(Object response) {
+                            synchronized (responses) {
+                                if (finished[index]) return;
+                                responses[index] = response;
+                                finished[index] = true;
+                            }
+                            latch.countDown();
+                        }
+                    });
+                }
+            }, connection.priority);
+        }
+
+        try {
+            latch.await(timeout, unit);
+        } finally {
+            synchronized (responses) {
+                for (int i = 0; i < count; i++) {
+                    // only connections which started have a connection of their own to stop
+                    if (started[i] && !finished[i]) connections.get(i).stopConnection();
+                    finished[i] = true;
+                }
+            }
+        }
+
+        return new ArrayList<Object>(Arrays.asList(responses));
+    }
+
     public enum Method {POST, GET}
 
     public interface FetchJsonCallback {
@@ -180,6 +313,10 @@ public class ApiConnection {
     }
 
     public interface FetchCallback {
+        /**
+         * @param response the parsed JSON response, the response text if it isn't JSON, or the
+         *                 RequestTimeoutException if the request timed out
+         */
         void run(Object response);
     }
 
@@ -0,0 +1,365 @@
+/*
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Copyright (c) 2016, Janrain, Inc.
+ *
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *  * Neither the name of the Janrain, Inc. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ */
+
+package com.janrain.android.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The eventual result of an asynchronous library operation, e.g. a Capture API call, which either succeeds
+ * with a value or fails with an exception. A small stand-in for java.util.concurrent.CompletableFuture,
+ * which isn't available on all the API levels the library supports.
+ *
+ * Listeners are called on the thread which completes the future, for library operations this is the thread
+ * the operation was started on, usually the UI thread. A listener added to a completed future is called
+ * immediately. Operations can be composed with then() and map(), and independent operations started together
+ * and joined with allOf().
+ *
+ * The blocking get() methods must not be called on the thread the operation completes on, usually the UI
+ * thread, or they will never return.
+ *
+ * @param <T> the type of the value of a successful result
+ */
+public class ApiFuture<T> implements Future<T> {
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<Listener<? super T>> mListeners = new ArrayList<Listener<? super T>>();
+    private final List<Runnable> mCancellationHooks = new ArrayList<Runnable>();
+    private boolean mDone;
+    private boolean mCancelled;
+    private T mValue;
+    private Throwable mFailure;
+
+    /**
+     * Receives the result of an ApiFuture
+     */
+    public interface Listener<T> {
+        void onSuccess(T value);
+
+        /**
+         * @param failure the exception the operation failed with, a CancellationException if the future was
+         *                cancelled, or a TimeoutException if it timed out
+         */
+        void onFailure(Throwable failure);
+    }
+
+    /**
+     * Starts a dependent operation with the value of a successful future, see then()
+     */
+    public interface Continuation<T, U> {
+        ApiFuture<U> then(T value) throws Exception;
+    }
+
+    /**
+     * @return a future which has already succeeded with value
+     */
+    public static <T> ApiFuture<T> succeeded(T value) {
+        ApiFuture<T> future = new ApiFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * @return a future which has already failed with failure
+     */
+    public static <T> ApiFuture<T> failed(Throwable failure) {
+        ApiFuture<T> future = new ApiFuture<T>();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * Completes this future successfully, unless it is already done
+     *
+     * @return true if this call completed the future
+     */
+    public boolean complete(T value) {
+        return finish(value, null, false, false);
+    }
+
+    /**
+     * Completes this future with a failure, unless it is already done
+     *
+     * @return true if this call completed the future
+     */
+    public boolean fail(Throwable failure) {
+        if (failure == null) throw new IllegalArgumentException("null failure");
+        return finish(null, failure, false, false);
+    }
+
+    /**
+     * Cancels the operation: the future fails with a CancellationException and its cancellation hooks are
+     * run, e.g. to stop the operation's connection.
+     *
+     * @param mayInterruptIfRunning ignored, the library's operations can always be stopped
+     * @return true if this call cancelled the future, false if it was already done
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException(), true, true);
+    }
+
+    private boolean finish(T value, Throwable failure, boolean cancelled, boolean stopOperation) {
+        List<Listener<? super T>> listeners;
+        List<Runnable> hooks;
+        synchronized (this) {
+            if (mDone) return false;
+            mDone = true;
+            mValue = value;
+            mFailure = failure;
+            mCancelled = cancelled;
+            listeners = new ArrayList<Listener<? super T>>(mListeners);
+            mListeners.clear();
+            hooks = new ArrayList<Runnable>(mCancellationHooks);
+            mCancellationHooks.clear();
+            notifyAll();
+        }
+
+        if (stopOperation) for (Runnable hook : hooks) hook.run();
+        for (Listener<? super T> listener : listeners) notify(listener);
+        return true;
+    }
+
+    private void notify(Listener<? super T> listener) {
+        if (mFailure != null) {
+            listener.onFailure(mFailure);
+        } else {
+            listener.onSuccess(mValue);
+        }
+    }
+
+    /**
+     * Adds a listener for the result, which is called immediately if this future is already done
+     *
+     * @return this future
+     */
+    public ApiFuture<T> addListener(Listener<? super T> listener) {
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+
+        notify(listener);
+        return this;
+    }
+
+    /**
+     * Adds an action to run if this future is cancelled, immediately if it already has been
+     *
+     * @return this future
+     */
+    public ApiFuture<T> onCancel(Runnable hook) {
+        synchronized (this) {
+            if (!mDone) {
+                mCancellationHooks.add(hook);
+                return this;
+            }
+            if (!mCancelled) return this;
+        }
+
+        hook.run();
+        return this;
+    }
+
+    /**
+     * Fails this future with a TimeoutException, and cancels its operation, unless it completes within the
+     * timeout
+     *
+     * @return this future
+     */
+    public ApiFuture<T> withTimeout(long timeout, TimeUnit unit) {
+        final Runnable expire = new Runnable() {
+            public void run() {
+                finish(null, new TimeoutException(), false, true);
+            }
+        };
+        sMainHandler.postDelayed(expire, unit.toMillis(timeout));
+        addListener(new Listener<T>() {
+            public void onSuccess(T value) {
+                sMainHandler.removeCallbacks(expire);
+            }
+
+            public void onFailure(Throwable failure) {
+                sMainHandler.removeCallbacks(expire);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Chains a dependent operation: when this future succeeds, continuation is called with its value to
+     * start the next operation. Failures, of either operation, are passed through.
+     *
+     * Cancelling the returned future cancels whichever of the two operations is outstanding.
+     *
+     * @return a future for the result of the dependent operation
+     */
+    public <U> ApiFuture<U> then(final Continuation<? super T, U> continuation) {
+        final ApiFuture<U> result = new ApiFuture<U>();
+        result.onCancel(new Runnable() {
+            public void run() {
+                cancel(true);
+            }
+        });
+
+        addListener(new Listener<T>() {
+            public void onSuccess(T value) {
+                ApiFuture<U> next;
+                try {
+                    next = continuation.then(value);
+                } catch (Exception e) {
+                    result.fail(e);
+                    return;
+                }
+
+                final ApiFuture<U> nextFuture = next;
+                result.onCancel(new Runnable() {
+                    public void run() {
+                        nextFuture.cancel(true);
+                    }
+                });
+                nextFuture.addListener(new Listener<U>() {
+                    public void onSuccess(U value) {
+                        result.complete(value);
+                    }
+
+                    public void onFailure(Throwable failure) {
+                        result.fail(failure);
+                    }
+                });
+            }
+
+            public void onFailure(Throwable failure) {
+                result.fail(failure);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return a future for the value of this future transformed by function
+     */
+    public <U> ApiFuture<U> map(final CollectionUtils.Function<U, ? super T> function) {
+        return then(new Continuation<T, U>() {
+            public ApiFuture<U> then(T value) {
+                return succeeded(function.operate(value));
+            }
+        });
+    }
+
+    /**
+     * Joins independent operations. The returned future succeeds with the values of all of the futures, in
+     * order, once they have all succeeded, or fails as soon as any of them fails, cancelling the others.
+     * Cancelling the returned future cancels all of the futures.
+     */
+    public static <T> ApiFuture<List<T>> allOf(final List<? extends ApiFuture<? extends T>> futures) {
+        final ApiFuture<List<T>> result = new ApiFuture<List<T>>();
+        if (futures.isEmpty()) {
+            result.complete(Collections.<T>emptyList());
+            return result;
+        }
+
+        final Object[] values = new Object[futures.size()];
+        final int[] outstanding = {futures.size()};
+        result.onCancel(new Runnable() {
+            public void run() {
+                for (ApiFuture<? extends T> f : futures) f.cancel(true);
+            }
+        });
+
+        for (int i = 0; i < futures.size(); i++) {
+            final int index = i;
+            futures.get(i).addListener(new Listener<T>() {
+                @SuppressWarnings("unchecked")
+                public void onSuccess(T value) {
+                    List<T> joined = null;
+                    synchronized (values) {
+                        values[index] = value;
+                        if (--outstanding[0] == 0) {
+                            joined = new ArrayList<T>();
+                            for (Object v : values) joined.add((T) v);
+                        }
+                    }
+                    if (joined != null) result.complete(joined);
+                }
+
+                public void onFailure(Throwable failure) {
+                    if (result.fail(failure)) {
+                        for (ApiFuture<? extends T> f : futures) f.cancel(true);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!mDone) wait();
+        return getResult();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if (mCancelled) throw (CancellationException) mFailure;
+        if (mFailure != null) throw new ExecutionException(mFailure);
+        return mValue;
+    }
+}
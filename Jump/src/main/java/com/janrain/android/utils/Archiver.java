@@ -114,7 +114,7 @@ public final class Archiver {
                     }
                 }
             }
-        });
+        }, ThreadUtils.Priority.BACKGROUND_IO);
     }
 
     /**
@@ -152,17 +152,49 @@ public class JsonUtils {
      * @throws IllegalArgumentException if val was not a JSON value, and could not be copied
      */
     public static Object copyJsonVal(Object val) throws IllegalArgumentException {
-        try {
-            if (val instanceof JSONObject) {
-                return new JSONObject(val.toString());
-            } else if (val instanceof JSONArray) {
-                return new JSONArray(val.toString());
-            } else {
-                //everything else is^H^H had better be immutable
-                return val;
+        // copy the tree structurally instead of serializing and re-parsing it
+        if (val instanceof JSONObject) {
+            JSONObject source = (JSONObject) val;
+            JSONObject copy = new JSONObject();
+            Iterator<String> keys = source.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                jsonObjectUnsafePut(copy, key, copyJsonVal(source.opt(key)));
             }
-        } catch (JSONException e) {
-            throw new IllegalArgumentException(e);
+            return copy;
+        } else if (val instanceof JSONArray) {
+            JSONArray source = (JSONArray) val;
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < source.length(); i++) copy.put(copyJsonVal(source.opt(i)));
+            return copy;
+        } else {
+            //everything else is^H^H had better be immutable
+            return val;
+        }
+    }
+
+    /**
+     * Copies the top level of a JSON container, sharing its values with the copy
+     * @param val a JSONObject or JSONArray
+     * @return a new container holding the same values as val, or val itself if val is immutable
+     */
+    public static Object shallowCopyJsonVal(Object val) {
+        if (val instanceof JSONObject) {
+            JSONObject source = (JSONObject) val;
+            JSONObject copy = new JSONObject();
+            Iterator<String> keys = source.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                jsonObjectUnsafePut(copy, key, source.opt(key));
+            }
+            return copy;
+        } else if (val instanceof JSONArray) {
+            JSONArray source = (JSONArray) val;
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < source.length(); i++) copy.put(source.opt(i));
+            return copy;
+        } else {
+            return val;
         }
     }
 
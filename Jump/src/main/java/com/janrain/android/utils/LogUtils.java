@@ -35,23 +35,64 @@ package com.janrain.android.utils;
 import android.util.Log;
 import com.janrain.android.engage.JREngage;
 
+/**
+ * Logging for the library. Debug messages are only emitted when logging is enabled (see
+ * JREngage.sLoggingEnabled) and the minimum level admits them. Both checks run before any work is done on
+ * the message: the caller-derived tag is only computed for messages which are emitted, and messages which are
+ * expensive to build should be passed as a LazyMessage, or built behind isDebugEnabled(). Deriving the tag
+ * takes a stack trace per message, hot paths should pass a static tag instead.
+ */
 public class LogUtils {
+    private static volatile int sMinLevel = Log.DEBUG;
+
     private LogUtils() {}
 
+    /**
+     * A log message which is only built if it is going to be logged
+     */
+    public interface LazyMessage {
+        String build();
+    }
+
+    /**
+     * Sets the lowest priority which is logged, e.g. Log.ERROR to suppress debug messages even when
+     * logging is enabled. Defaults to Log.DEBUG.
+     *
+     * @param level one of the android.util.Log priority constants
+     */
+    public static void setMinLevel(int level) {
+        sMinLevel = level;
+    }
+
+    /**
+     * @return true if debug messages are being logged, for guarding code which only builds log messages
+     */
+    public static boolean isDebugEnabled() {
+        return sMinLevel <= Log.DEBUG && (JREngage.sLoggingEnabled == null || JREngage.sLoggingEnabled);
+    }
+
+    private static boolean isErrorEnabled() {
+        return sMinLevel <= Log.ERROR;
+    }
+
     public static void logd(String tag, String msg, Throwable tr) {
-        if (JREngage.sLoggingEnabled == null || JREngage.sLoggingEnabled) Log.d(tag, msg, tr);
+        if (isDebugEnabled()) Log.d(tag, msg, tr);
     }
 
     public static void logd(String tag, String msg) {
-        if (JREngage.sLoggingEnabled == null || JREngage.sLoggingEnabled) Log.d(tag, msg);
+        if (isDebugEnabled()) Log.d(tag, msg);
+    }
+
+    public static void logd(String tag, LazyMessage msg) {
+        if (isDebugEnabled()) Log.d(tag, msg.build());
     }
 
     private static void logd(String msg, Throwable t, int stackDepth) {
-        if (!(JREngage.sLoggingEnabled == null || JREngage.sLoggingEnabled)) return;
+        if (!isDebugEnabled()) return;
         if (t != null) {
-            Log.d("[" + getLogTag(stackDepth) + "]", msg, t);
+            Log.d(getLogTag(stackDepth), msg, t);
         } else {
-            Log.d("[" + getLogTag(stackDepth) + "]", msg);
+            Log.d(getLogTag(stackDepth), msg);
         }
     }
 
@@ -63,6 +104,11 @@ public class LogUtils {
         logd(msg, null, 2);
     }
 
+    public static void logd(LazyMessage msg) {
+        if (!isDebugEnabled()) return;
+        Log.d(getLogTag(1), msg.build());
+    }
+
     public static void logd() {
         logd("", null, 2);
     }
@@ -76,24 +122,20 @@ public class LogUtils {
     }
 
     private static void loge(String msg, Throwable t, int stackDepth) {
+        if (!isErrorEnabled()) return;
         if (t != null) {
-            Log.e("[" + getLogTag(stackDepth) + "]", msg, t);
+            Log.e(getLogTag(stackDepth), msg, t);
         } else {
-            Log.e("[" + getLogTag(stackDepth) + "]", msg);
+            Log.e(getLogTag(stackDepth), msg);
         }
     }
 
+    // Not cached: finding the caller takes a stack trace, which is the costly part, and a cache keyed by
+    // call site can only be looked up after it. The tagged logd overloads skip this entirely.
     private static String getLogTag(int stackDepth) {
-        String method;
-        try {
-            throw new Exception();
-        } catch (Exception e) {
-            e.fillInStackTrace();
-            StackTraceElement stackTraceElement = e.getStackTrace()[stackDepth + 1];
-            method = stackTraceElement.getClassName() + "." + stackTraceElement.getMethodName() + ":"
-                    + stackTraceElement.getLineNumber();
-        }
-        return method;
+        StackTraceElement caller = new Throwable().getStackTrace()[stackDepth + 1];
+        return "[" + caller.getClassName() + "." + caller.getMethodName() + ":" + caller.getLineNumber()
+                + "]";
     }
 
     public static void throwDebugException(RuntimeException debugException) {
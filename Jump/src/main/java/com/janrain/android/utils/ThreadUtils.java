@@ -34,15 +34,62 @@ package com.janrain.android.utils;
 
 import android.os.Looper;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Runs background work on a shared pool of threads. Work is submitted to one of several priority lanes, each
+ * with its own bounded queue and a limit on how many pool threads it may occupy at once, so that a burst of
+ * background or prefetch work cannot delay the interactive requests a user is waiting on.
+ */
 public class ThreadUtils {
-    private static ThreadPoolExecutor sExecutor;
+    private static final int POOL_SIZE = 10;
+
+    /**
+     * The priority lanes of the scheduler. Queued work from a higher priority lane is always started before
+     * queued work from a lower priority lane.
+     */
+    public enum Priority {
+        /**
+         * Work the end-user is waiting on, e.g. sign-in and other Capture API calls
+         */
+        INTERACTIVE(POOL_SIZE, 64),
+
+        /**
+         * Disk and network IO whose result is not immediately needed, e.g. archiving state to disk
+         */
+        BACKGROUND_IO(4, 64),
+
+        /**
+         * Speculative work, e.g. downloading thumbnails and profile pictures
+         */
+        PREFETCH(2, 32);
+
+        private final int maxRunning;
+        private final int queueCapacity;
+
+        Priority(int maxRunning, int queueCapacity) {
+            this.maxRunning = maxRunning;
+            this.queueCapacity = queueCapacity;
+        }
+    }
+
+    private static final ThreadPoolExecutor sExecutor;
+    private static final Object sLock = new Object();
+    private static final Map<Priority, Lane> sLanes = new EnumMap<Priority, Lane>(Priority.class);
+    private static int sRunning;
+
     static {
-        sExecutor = new ThreadPoolExecutor(0, 10, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(10));
+        // The dispatcher never hands the pool more than POOL_SIZE tasks at once, the pool's own queue only
+        // covers the moment between a finishing task starting its successor and its thread going idle
+        sExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        sExecutor.allowCoreThreadTimeOut(true);
 
         // wrap the thread pool's thread factory in a thing that badges the names of its threads with a
         // prefix so that they can be identified while debugging
@@ -54,13 +101,198 @@ public class ThreadUtils {
                 return t;
             }
         });
+
+        for (Priority priority : Priority.values()) sLanes.put(priority, new Lane(priority));
     }
 
     public static void executeInBg(Runnable r) {
+        executeInBg(r, Priority.INTERACTIVE);
+    }
+
+    /**
+     * Runs r on a background thread in the given priority lane. If the calling thread has no Looper then r is
+     * run synchronously instead.
+     *
+     * Submissions are never rejected. When the lane's queue is full a background Looper thread blocks until
+     * there is room; the main thread is never blocked, its submission is queued past the bound and counted
+     * as an overflow in the lane's metrics.
+     *
+     * @param r the work to run
+     * @param priority the lane to run the work in
+     */
+    public static void executeInBg(Runnable r, Priority priority) {
         if (Looper.myLooper() == null) {
             r.run();
-        } else {
-            sExecutor.execute(r);
+            return;
+        }
+
+        executeInPool(r, priority);
+    }
+
+    /**
+     * Runs r on a background thread in the given priority lane, like executeInBg, but also when the calling
+     * thread has no Looper. For fanning work out from worker threads, see ApiConnection.executeAll.
+     *
+     * @param r the work to run
+     * @param priority the lane to run the work in
+     */
+    public static void executeInPool(Runnable r, Priority priority) {
+        boolean mayBlock = Looper.myLooper() != Looper.getMainLooper();
+        Lane lane = sLanes.get(priority);
+        synchronized (sLock) {
+            while (lane.queue.size() >= priority.queueCapacity && mayBlock) {
+                try {
+                    sLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (lane.queue.size() >= priority.queueCapacity) lane.overflowed++;
+
+            lane.queue.add(new Task(r, lane));
+            lane.submitted++;
+            dispatch();
+        }
+    }
+
+    /**
+     * Starts queued tasks, highest priority lane first, while there are free threads and the lanes are under
+     * their running limits. Must be called with sLock held.
+     */
+    private static void dispatch() {
+        for (Priority priority : Priority.values()) {
+            Lane lane = sLanes.get(priority);
+            while (sRunning < POOL_SIZE && lane.running < priority.maxRunning && !lane.queue.isEmpty()) {
+                Task task = lane.queue.poll();
+                lane.running++;
+                sRunning++;
+                sExecutor.execute(task);
+            }
+        }
+
+        // wake any submitters blocked on a full queue
+        sLock.notifyAll();
+    }
+
+    /**
+     * @return a snapshot of the scheduler's per-lane queue depth and wait time metrics
+     */
+    public static Map<Priority, LaneMetrics> getMetrics() {
+        Map<Priority, LaneMetrics> retval = new EnumMap<Priority, LaneMetrics>(Priority.class);
+        synchronized (sLock) {
+            for (Lane lane : sLanes.values()) retval.put(lane.priority, new LaneMetrics(lane));
+        }
+        return retval;
+    }
+
+    /**
+     * A point in time snapshot of the metrics of one priority lane
+     */
+    public static class LaneMetrics {
+        /**
+         * The number of tasks waiting in the lane's queue
+         */
+        public final int queueDepth;
+
+        /**
+         * The number of the lane's tasks currently running
+         */
+        public final int running;
+
+        /**
+         * The total number of tasks submitted to the lane
+         */
+        public final long submitted;
+
+        /**
+         * The total number of tasks the lane has finished running
+         */
+        public final long completed;
+
+        /**
+         * The number of submissions from the main thread which were queued past the lane's capacity
+         */
+        public final long overflowed;
+
+        /**
+         * The sum of the time the lane's started tasks spent queued, in milliseconds
+         */
+        public final long totalWaitMillis;
+
+        /**
+         * The longest time any of the lane's tasks spent queued, in milliseconds
+         */
+        public final long maxWaitMillis;
+
+        private LaneMetrics(Lane lane) {
+            queueDepth = lane.queue.size();
+            running = lane.running;
+            submitted = lane.submitted;
+            completed = lane.completed;
+            overflowed = lane.overflowed;
+            totalWaitMillis = lane.totalWaitMillis;
+            maxWaitMillis = lane.maxWaitMillis;
+        }
+
+        /**
+         * @return the mean time a started task spent queued, in milliseconds
+         */
+        public long getAverageWaitMillis() {
+            long started = submitted - queueDepth;
+            return started == 0 ? 0 : totalWaitMillis / started;
+        }
+
+        public String toString() {
+            return "<LaneMetrics queueDepth: " + queueDepth + " running: " + running + " submitted: "
+                    + submitted + " completed: " + completed + " overflowed: " + overflowed
+                    + " averageWaitMillis: " + getAverageWaitMillis() + " maxWaitMillis: " + maxWaitMillis
+                    + ">";
+        }
+    }
+
+    private static class Lane {
+        private final Priority priority;
+        private final ArrayDeque<Task> queue = new ArrayDeque<Task>();
+        private int running;
+        private long submitted;
+        private long completed;
+        private long overflowed;
+        private long totalWaitMillis;
+        private long maxWaitMillis;
+
+        private Lane(Priority priority) {
+            this.priority = priority;
+        }
+    }
+
+    private static class Task implements Runnable {
+        private final Runnable mRunnable;
+        private final Lane mLane;
+        private final long mEnqueuedAt = System.nanoTime();
+
+        private Task(Runnable runnable, Lane lane) {
+            mRunnable = runnable;
+            mLane = lane;
+        }
+
+        public void run() {
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mEnqueuedAt);
+            synchronized (sLock) {
+                mLane.totalWaitMillis += waitMillis;
+                if (waitMillis > mLane.maxWaitMillis) mLane.maxWaitMillis = waitMillis;
+            }
+
+            try {
+                mRunnable.run();
+            } finally {
+                synchronized (sLock) {
+                    mLane.running--;
+                    mLane.completed++;
+                    sRunning--;
+                    dispatch();
+                }
+            }
         }
     }
 }